@@ -137,6 +137,10 @@ public class StateMachine
 		_delegate = new WeakReference<>(delegate);
 		_notificationQueue = OperationQueue.newSerialQueue(queueName + ".notifications");
 		_transitionQueue = OperationQueue.newSerialQueue(queueName + ".transitions");
+		
+		// The serial queues don't need their own threads: they borrow the workers of the background queue.
+		_notificationQueue.setTargetQueue(OperationQueue.getBackgroundQueue());
+		_transitionQueue.setTargetQueue(OperationQueue.getBackgroundQueue());
 	}
 	
 	// endregion
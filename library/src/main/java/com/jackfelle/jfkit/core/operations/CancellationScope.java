@@ -0,0 +1,188 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+public final class CancellationScope
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Data
+	
+	private Set<CancellationScope> _children;
+	private @NonNull Set<Operation> _operations;
+	private final CancellationScope _parent;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - State
+	
+	private boolean _cancelled;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	public CancellationScope getParent()
+	{
+		return _parent;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - State
+	
+	public boolean isCancelled()
+	{
+		synchronized(this)
+		{
+			return _cancelled;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Memory management
+	
+	public CancellationScope()
+	{
+		this(null);
+	}
+	
+	public CancellationScope(CancellationScope parent)
+	{
+		// Data
+		_children = null;
+		_operations = new HashSet<>();
+		_parent = parent;
+		
+		// State
+		_cancelled = false;
+		
+		// A child of a cancelled scope is born cancelled.
+		if((parent != null) && !parent.addChild(this))
+			_cancelled = true;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Data management
+	
+	private boolean addChild(@NonNull CancellationScope child)
+	{
+		synchronized(this)
+		{
+			if(_cancelled)
+				return false;
+			
+			if(_children == null)
+				_children = new HashSet<>();
+			_children.add(child);
+			return true;
+		}
+	}
+	
+	boolean addOperation(@NonNull Operation operation)
+	{
+		synchronized(this)
+		{
+			if(_cancelled)
+				return false;
+			
+			_operations.add(operation);
+			return true;
+		}
+	}
+	
+	private void removeChild(@NonNull CancellationScope child)
+	{
+		synchronized(this)
+		{
+			if(_children != null)
+				_children.remove(child);
+		}
+	}
+	
+	void removeOperation(@NonNull Operation operation)
+	{
+		synchronized(this)
+		{
+			_operations.remove(operation);
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - State management
+	
+	public void cancel()
+	{
+		// Collects the operations of this scope and of all its descendants; each scope is visited once and then left empty.
+		List<Operation> operations = new ArrayList<>();
+		List<CancellationScope> scopes = new ArrayList<>();
+		scopes.add(this);
+		for(int i = 0; i < scopes.size(); i++)
+		{
+			CancellationScope scope = scopes.get(i);
+			synchronized(scope)
+			{
+				if(scope._cancelled)
+					continue;
+				
+				scope._cancelled = true;
+				operations.addAll(scope._operations);
+				scope._operations.clear();
+				if(scope._children != null)
+				{
+					scopes.addAll(scope._children);
+					scope._children = null;
+				}
+			}
+		}
+		
+		CancellationScope parent = this.getParent();
+		if(parent != null)
+			parent.removeChild(this);
+		
+		if(!operations.isEmpty())
+			Operation.cancelOperations(operations, true);
+	}
+	
+	public void close()
+	{
+		// Detaches the scope from its parent, which would otherwise keep it until it's cancelled; the scope is no longer cancelled along with its parent.
+		CancellationScope parent = this.getParent();
+		if(parent != null)
+			parent.removeChild(this);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
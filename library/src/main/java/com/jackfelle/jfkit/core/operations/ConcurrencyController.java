@@ -0,0 +1,135 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+final class ConcurrencyController
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	private static final long MAX_SAMPLING_INTERVAL = TimeUnit.SECONDS.toNanos(2);
+	private static final int MIN_SAMPLE_SIZE = 8;
+	private static final long SAMPLING_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+	private static final double THROUGHPUT_CHANGE_THRESHOLD = 0.05;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Execution
+	
+	private int _concurrencyLimit;
+	private int _direction;
+	private final @NonNull AtomicInteger _finishedTasksCount;
+	private final int _maxConcurrencyLimit;
+	private final int _minConcurrencyLimit;
+	private double _previousThroughput;
+	private volatile long _sampleStartTime;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Execution
+	
+	int getConcurrencyLimit()
+	{
+		synchronized(this)
+		{
+			return _concurrencyLimit;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Memory management
+	
+	ConcurrencyController(int minConcurrencyLimit, int maxConcurrencyLimit, int concurrencyLimit)
+	{
+		// Execution
+		_concurrencyLimit = Math.max(minConcurrencyLimit, Math.min(maxConcurrencyLimit, concurrencyLimit));
+		_direction = 1;
+		_finishedTasksCount = new AtomicInteger(0);
+		_maxConcurrencyLimit = maxConcurrencyLimit;
+		_minConcurrencyLimit = minConcurrencyLimit;
+		_previousThroughput = -1;
+		_sampleStartTime = System.nanoTime();
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Execution management
+	
+	int sample(boolean hasBacklog)
+	{
+		synchronized(this)
+		{
+			long now = System.nanoTime();
+			long elapsedTime = now - _sampleStartTime;
+			if(elapsedTime < SAMPLING_INTERVAL)
+				return _concurrencyLimit;
+			
+			// Small samples are too noisy: the sampling interval is stretched until enough tasks have finished.
+			int finishedTasksCount = _finishedTasksCount.get();
+			if((finishedTasksCount < MIN_SAMPLE_SIZE) && (elapsedTime < MAX_SAMPLING_INTERVAL))
+				return _concurrencyLimit;
+			
+			_finishedTasksCount.addAndGet(-finishedTasksCount);
+			_sampleStartTime = now;
+			
+			double throughput = (finishedTasksCount * (double)TimeUnit.SECONDS.toNanos(1)) / elapsedTime;
+			double previousThroughput = _previousThroughput;
+			_previousThroughput = throughput;
+			
+			// Hill climbing: a move that raised the throughput is repeated, a move that lowered it is reverted and a move that didn't change it is not worth its workers.
+			if(!hasBacklog)
+				_direction = -1; // The throughput is limited by the demand, so the extra workers are useless.
+			else if(previousThroughput < 0)
+				_direction = 1;
+			else
+			{
+				double change = ((previousThroughput > 0) ? ((throughput - previousThroughput) / previousThroughput) : ((throughput > 0) ? 1 : 0));
+				if(change < -THROUGHPUT_CHANGE_THRESHOLD)
+					_direction = -_direction;
+				else if(change <= THROUGHPUT_CHANGE_THRESHOLD)
+					_direction = -1;
+			}
+			
+			_concurrencyLimit = Math.max(_minConcurrencyLimit, Math.min(_maxConcurrencyLimit, _concurrencyLimit + _direction));
+			return _concurrencyLimit;
+		}
+	}
+	
+	boolean taskIsFinished()
+	{
+		// Returns true if a new sample should be taken.
+		_finishedTasksCount.incrementAndGet();
+		return ((System.nanoTime() - _sampleStartTime) >= SAMPLING_INTERVAL);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
@@ -24,19 +24,42 @@
 
 package com.jackfelle.jfkit.core.operations;
 
-import android.util.Log;
+import android.os.Process;
+import android.os.SystemClock;
 
 import com.jackfelle.jfkit.data.Blocks;
+import com.jackfelle.jfkit.data.Error;
 import com.jackfelle.jfkit.utilities.ObserversController;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public abstract class Operation
 {
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	public static final long NO_DEADLINE = 0;
+	
+	// State word: the flags use the lowest bits, the number of pending dependencies uses the others.
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXECUTING = 1 << 1;
+	private static final int STATE_FINISHED = 1 << 2;
+	private static final int STATE_PENDING_DEPENDENCY = 1 << 3;
+	
+	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Types (Enumerations)
 	
@@ -62,6 +85,77 @@ public abstract class Operation
 		////////////////////////////////////////////////////////////////////////////////////////////////
 	}
 	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Classes)
+	
+	static final class Slot extends AtomicReference<Operation>
+	{
+		private final long _criticalPathLength;
+		private final long _deadline;
+		private final boolean _deferredUntilIdle;
+		private final @NonNull QueuePriority _queuePriority;
+		private final long _readyTime;
+		private long _sequence;
+		
+		long getCriticalPathLength()
+		{
+			return _criticalPathLength;
+		}
+		
+		long getDeadline()
+		{
+			return _deadline;
+		}
+		
+		boolean isDeferredUntilIdle()
+		{
+			return _deferredUntilIdle;
+		}
+		
+		@NonNull QueuePriority getQueuePriority()
+		{
+			return _queuePriority;
+		}
+		
+		long getReadyTime()
+		{
+			return _readyTime;
+		}
+		
+		long getSequence()
+		{
+			return _sequence;
+		}
+		
+		void setSequence(long sequence)
+		{
+			_sequence = sequence;
+		}
+		
+		boolean hasDeadline()
+		{
+			return (_deadline != NO_DEADLINE);
+		}
+		
+		boolean isOnCriticalPath()
+		{
+			return (_criticalPathLength > 0);
+		}
+		
+		Slot(@NonNull Operation operation)
+		{
+			super(operation);
+			
+			_criticalPathLength = operation._criticalPathLength;
+			_deadline = operation._deadline;
+			_deferredUntilIdle = operation._deferredUntilIdle;
+			_queuePriority = operation._queuePriority;
+			_readyTime = SystemClock.uptimeMillis();
+			_sequence = 0;
+		}
+	}
+	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Types (Interfaces)
@@ -78,15 +172,36 @@ public abstract class Operation
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Data
 	
-	private String _name;
+	private volatile String _name;
+	private long _traceID;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Execution
 	
-	private Blocks.Block _completion;
+	private OperationQueue.QualityOfService _boostedQualityOfService;
+	private volatile CancellationScope _cancellationScope;
+	private boolean _coalesced;
+	private List<Operation> _coalescedOperations;
+	private volatile Object _coalescingKey;
+	private volatile Blocks.Block _completion;
+	private volatile long _criticalPathLength;
+	private volatile long _deadline;
+	private volatile boolean _deferredUntilIdle;
 	private Set<Operation> _dependencies;
-	private QueuePriority _queuePriority;
+	private Set<Operation> _dependents;
+	private boolean _dispatched;
+	private long _dispatchTime;
+	private volatile Object _enqueuedCoalescingKey; // The keys used by the queue: they can't change while the operation is queued.
+	private volatile Object _enqueuedSerialKey;
+	private long _enqueueTime;
+	private int _executingThreadID;
+	private boolean _parked;
+	private OperationQueue _queue;
+	private volatile QueuePriority _queuePriority;
+	private QueuePriority _reservedQueuePriority;
+	private volatile Object _serialKey;
+	private Slot _slot;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -98,9 +213,9 @@ public abstract class Operation
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - State
 	
-	private boolean _cancelled;
-	private boolean _executing;
-	private boolean _finished;
+	private volatile Error _error;
+	private CountDownLatch _finishedLatch; // Created on demand by the first waiter.
+	private @NonNull AtomicInteger _state;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -108,17 +223,22 @@ public abstract class Operation
 	
 	public String getName()
 	{
-		synchronized(this)
-		{
-			return _name;
-		}
+		return _name;
 	}
 	
 	public void setName(String name)
 	{
+		_name = name;
+	}
+	
+	long getTraceID()
+	{
+		// Assigned on demand, so that the operations are numbered only while tracing.
 		synchronized(this)
 		{
-			_name = name;
+			if(_traceID == 0)
+				_traceID = OperationTracer.newTraceID();
+			return _traceID;
 		}
 	}
 	
@@ -126,20 +246,75 @@ public abstract class Operation
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties accessors - Execution
 	
-	public Blocks.Block getCompletion()
+	public CancellationScope getCancellationScope()
 	{
+		return _cancellationScope;
+	}
+	
+	public void setCancellationScope(CancellationScope cancellationScope)
+	{
+		CancellationScope oldCancellationScope;
 		synchronized(this)
 		{
-			return _completion;
+			if(this.isFinished() || (_cancellationScope == cancellationScope))
+				return;
+			
+			oldCancellationScope = _cancellationScope;
+			_cancellationScope = cancellationScope;
 		}
+		
+		if(oldCancellationScope != null)
+			oldCancellationScope.removeOperation(this);
+		
+		// Joining a scope that has already been cancelled cancels the operation too.
+		if((cancellationScope != null) && !cancellationScope.addOperation(this))
+			Operation.cancelOperations(Collections.singletonList(this), true);
+	}
+	
+	public Object getCoalescingKey()
+	{
+		return _coalescingKey;
+	}
+	
+	public void setCoalescingKey(Object coalescingKey)
+	{
+		_coalescingKey = coalescingKey;
+	}
+	
+	public Blocks.Block getCompletion()
+	{
+		return _completion;
 	}
 	
 	public void setCompletion(Blocks.Block completion)
 	{
-		synchronized(this)
-		{
-			_completion = completion;
-		}
+		_completion = completion;
+	}
+	
+	void setCriticalPathLength(long criticalPathLength)
+	{
+		_criticalPathLength = criticalPathLength;
+	}
+	
+	public long getDeadline()
+	{
+		return _deadline;
+	}
+	
+	public void setDeadline(long deadline)
+	{
+		_deadline = Math.max(NO_DEADLINE, deadline);
+	}
+	
+	public boolean isDeferredUntilIdle()
+	{
+		return _deferredUntilIdle;
+	}
+	
+	public void setDeferredUntilIdle(boolean deferredUntilIdle)
+	{
+		// Honored by the main queue only: the other queues don't have an idle time to wait for.
+		_deferredUntilIdle = deferredUntilIdle;
 	}
 	
 	public @NonNull Set<Operation> getDependencies()
@@ -161,20 +336,32 @@ public abstract class Operation
 		return _dependencies;
 	}
 	
-	public @NonNull QueuePriority getQueuePriority()
+	long getWaitTime()
 	{
 		synchronized(this)
 		{
-			return _queuePriority;
+			return (_dispatchTime - _enqueueTime);
 		}
 	}
 	
+	public @NonNull QueuePriority getQueuePriority()
+	{
+		return _queuePriority;
+	}
+	
 	public void setQueuePriority(@NonNull QueuePriority queuePriority)
 	{
-		synchronized(this)
-		{
-			_queuePriority = queuePriority;
-		}
+		_queuePriority = queuePriority;
+	}
+	
+	public Object getSerialKey()
+	{
+		return _serialKey;
+	}
+	
+	public void setSerialKey(Object serialKey)
+	{
+		_serialKey = serialKey;
 	}
 	
 	// endregion
@@ -197,49 +384,33 @@ public abstract class Operation
 	
 	public boolean isCancelled()
 	{
-		synchronized(this)
-		{
-			return _cancelled;
-		}
+		return ((_state.get() & STATE_CANCELLED) != 0);
+	}
+	
+	public Error getError()
+	{
+		return _error;
+	}
+	
+	void setError(Error error)
+	{
+		_error = error;
 	}
 	
 	public boolean isExecuting()
 	{
-		synchronized(this)
-		{
-			return _executing;
-		}
+		return ((_state.get() & STATE_EXECUTING) != 0);
 	}
 	
 	public boolean isFinished()
 	{
-		synchronized(this)
-		{
-			return _finished;
-		}
+		return ((_state.get() & STATE_FINISHED) != 0);
 	}
 	
 	public boolean isReady()
 	{
-		synchronized(this)
-		{
-			if(_executing || _finished)
-				return false;
-		}
-		
-		Set<Operation> dependencies = this.getDependencies(false);
-		if(dependencies != null)
-		{
-			synchronized(dependencies)
-			{
-				for(Operation operation : dependencies)
-				{
-					if(!operation.isFinished())
-						return false;
-				}
-			}
-		}
-		return true;
+		// Ready means not executing, not finished and without pending dependencies: cancellation doesn't matter.
+		return ((_state.get() & ~STATE_CANCELLED) == 0);
 	}
 	
 	// endregion
@@ -250,19 +421,40 @@ public abstract class Operation
 	{
 		// Data
 		_name = null;
+		_traceID = 0;
 		
 		// Execution
+		_boostedQualityOfService = null;
+		_cancellationScope = null;
+		_coalesced = false;
+		_coalescedOperations = null;
+		_coalescingKey = null;
 		_completion = null;
+		_criticalPathLength = 0;
+		_deadline = NO_DEADLINE;
+		_deferredUntilIdle = false;
 		_dependencies = null;
+		_dependents = null;
+		_dispatched = false;
+		_dispatchTime = 0;
+		_enqueuedCoalescingKey = null;
+		_enqueuedSerialKey = null;
+		_enqueueTime = 0;
+		_executingThreadID = 0;
+		_parked = false;
+		_queue = null;
 		_queuePriority = QueuePriority.NORMAL;
+		_reservedQueuePriority = null;
+		_serialKey = null;
+		_slot = null;
 		
 		// Observers
 		_observersController = new ObserversController<>();
 		
 		// State
-		_cancelled = false;
-		_executing = false;
-		_finished = false;
+		_error = null;
+		_finishedLatch = null;
+		_state = new AtomicInteger(0);
 	}
 	
 	// endregion
@@ -274,32 +466,104 @@ public abstract class Operation
 		if(operations.size() == 0)
 			return;
 		
+		for(T operation : operations)
+			this.addDependency(operation);
+	}
+	
+	public <T extends Operation> void addDependency(@NonNull T dependency)
+	{
 		Set<Operation> dependencies = this.getDependencies(true);
 		synchronized(dependencies)
 		{
-			dependencies.addAll(operations);
+			if(!dependencies.add(dependency))
+				return;
 		}
+		
+		_state.addAndGet(STATE_PENDING_DEPENDENCY);
+		
+		if(!((Operation)dependency).addDependent(this))
+			this.dependencyIsResolved();
 	}
 	
-	public <T extends Operation> void addDependency(@NonNull T dependency)
+	private boolean addDependent(@NonNull Operation dependent)
 	{
-		Set<Operation> dependencies = this.getDependencies(true);
-		synchronized(dependencies)
+		synchronized(this)
 		{
-			dependencies.add(dependency);
+			if(this.isFinished())
+				return false;
+			
+			if(_dependents == null)
+				_dependents = new HashSet<>();
+			
+			_dependents.add(dependent);
+			return true;
 		}
 	}
 	
 	public void cancel()
+	{
+		if(this.markCancelled())
+			this.notifyCancelled();
+	}
+	
+	static void cancelOperations(@NonNull Collection<Operation> operations, boolean cascade)
+	{
+		// First pass: marks the operations (and their dependents, if needed) as cancelled, visiting each of them once.
+		List<Operation> cancelledOperations = new ArrayList<>(operations.size());
+		Set<Operation> visitedOperations = (cascade ? new HashSet<Operation>() : null);
+		LinkedList<Operation> pendingOperations = new LinkedList<>(operations);
+		while(!pendingOperations.isEmpty())
+		{
+			Operation operation = pendingOperations.removeFirst();
+			if(cascade)
+			{
+				if(!visitedOperations.add(operation))
+					continue;
+				
+				Set<Operation> dependents = operation.getDependents();
+				if(dependents != null)
+					pendingOperations.addAll(dependents);
+			}
+			
+			if(!operation.isFinished() && operation.markCancelled())
+				cancelledOperations.add(operation);
+		}
+		
+		// Second pass: delivers the notifications once every operation is in its final state.
+		for(Operation operation : cancelledOperations)
+			operation.notifyCancelled();
+		
+		// Third pass: finishes the operations that are not executing, so that they leave their queues without being executed.
+		for(Operation operation : cancelledOperations)
+			operation.finishIfCancelled();
+	}
+	
+	private void finishIfCancelled()
 	{
 		synchronized(this)
 		{
-			if(_cancelled)
+			if(_dispatched || ((_state.get() & (STATE_CANCELLED | STATE_EXECUTING | STATE_FINISHED)) != STATE_CANCELLED))
 				return;
-			
-			_cancelled = true;
 		}
 		
+		this.finish();
+	}
+	
+	private boolean markCancelled()
+	{
+		int state;
+		do
+		{
+			state = _state.get();
+			if((state & STATE_CANCELLED) != 0)
+				return false;
+		}
+		while(!_state.compareAndSet(state, state | STATE_CANCELLED));
+		return true;
+	}
+	
+	private void notifyCancelled()
+	{
 		this.getObserversController().notifyObserversNow(new ObserversController.NotificationBlock<Observer>()
 		{
 			@Override public void execute(@NonNull Observer observer)
@@ -309,19 +573,103 @@ public abstract class Operation
 		});
 	}
 	
-	protected void finish()
+	private void dependencyIsResolved()
 	{
+		if((_state.addAndGet(-STATE_PENDING_DEPENDENCY) & ~STATE_CANCELLED) != 0)
+			return;
+		
+		OperationQueue queue;
+		Slot slot;
+		
+		// The state is checked again while holding the lock, because it may have changed in the meantime.
 		synchronized(this)
 		{
-			if(_finished || (!_executing && !_cancelled))
+			if(_coalesced || _parked || (_slot != null) || !this.isReady())
 				return;
 			
-			_executing = false;
-			_finished = true;
+			queue = _queue;
+			if(queue == null)
+				return;
 			
-			this.notifyAll();
+			slot = new Slot(this);
+			_slot = slot;
 		}
 		
+		queue.operationIsReady(slot);
+	}
+	
+	protected void finish()
+	{
+		boolean cancelled;
+		CancellationScope cancellationScope;
+		List<Operation> coalescedOperations;
+		Set<Operation> dependents;
+		boolean dispatched;
+		long executionTime;
+		CountDownLatch finishedLatch;
+		OperationQueue queue;
+		Slot slot;
+		
+		// The transition happens while holding the lock, so that it's atomic with respect to the execution fields it releases.
+		synchronized(this)
+		{
+			int state;
+			do
+			{
+				state = _state.get();
+				if(((state & STATE_FINISHED) != 0) || ((state & (STATE_EXECUTING | STATE_CANCELLED)) == 0))
+					return;
+			}
+			while(!_state.compareAndSet(state, (state & ~STATE_EXECUTING) | STATE_FINISHED));
+			
+			cancelled = ((state & STATE_CANCELLED) != 0);
+			cancellationScope = _cancellationScope;
+			_cancellationScope = null;
+			coalescedOperations = _coalescedOperations;
+			_coalescedOperations = null;
+			dependents = _dependents;
+			_dependents = null;
+			dispatched = _dispatched;
+			_dispatched = false;
+			executionTime = (dispatched ? (System.nanoTime() - _dispatchTime) : 0);
+			finishedLatch = _finishedLatch;
+			_finishedLatch = null;
+			queue = _queue;
+			_queue = null;
+			slot = _slot;
+			_slot = null;
+		}
+		
+		if(OperationTracer.isEnabled())
+			OperationTracer.operationIsFinished(this, cancelled);
+		
+		if(finishedLatch != null)
+			finishedLatch.countDown();
+		
+		// Empties the slot so that the queue will discard it without scanning its lanes.
+		if((slot != null) && (slot.getAndSet(null) != null) && (queue != null))
+			queue.operationIsReleased(slot);
+		
+		if(cancellationScope != null)
+			cancellationScope.removeOperation(this);
+		
+		if(dependents != null)
+		{
+			for(Operation dependent : dependents)
+				dependent.dependencyIsResolved();
+		}
+		
+		// The coalesced operations finish before this one leaves its queue, so that they are finished too when the queue becomes quiescent.
+		if(coalescedOperations != null)
+		{
+			Error error = this.getError();
+			for(Operation coalescedOperation : coalescedOperations)
+				coalescedOperation.coalescingOperationIsFinished(cancelled, error);
+		}
+		
+		if(queue != null)
+			queue.operationIsFinished(this, cancelled, dispatched, executionTime);
+		
 		Blocks.Block completion = this.getCompletion();
 		if(completion != null)
 			completion.execute();
@@ -344,25 +692,336 @@ public abstract class Operation
 		if(operations.size() == 0)
 			return;
 		
+		for(T operation : operations)
+			this.removeDependency(operation);
+	}
+	
+	private Set<Operation> getDependents()
+	{
+		synchronized(this)
+		{
+			return ((_dependents == null) ? null : new HashSet<>(_dependents));
+		}
+	}
+	
+	boolean hasDependents()
+	{
+		synchronized(this)
+		{
+			return ((_dependents != null) && !_dependents.isEmpty());
+		}
+	}
+	
+	private boolean removeDependent(@NonNull Operation dependent)
+	{
+		synchronized(this)
+		{
+			return ((_dependents != null) && _dependents.remove(dependent));
+		}
+	}
+	
+	public <T extends Operation> void removeDependency(@NonNull T operation)
+	{
 		Set<Operation> dependencies = this.getDependencies(false);
 		if(dependencies == null)
 			return;
 		
 		synchronized(dependencies)
 		{
-			dependencies.removeAll(operations);
+			if(!dependencies.remove(operation))
+				return;
 		}
+		
+		if(((Operation)operation).removeDependent(this))
+			this.dependencyIsResolved();
 	}
 	
-	public <T extends Operation> void removeDependency(@NonNull T operation)
+	boolean enqueue(@NonNull OperationQueue queue, QueuePriority reservedQueuePriority, Object serialKey, boolean parked)
 	{
-		Set<Operation> dependencies = this.getDependencies(false);
-		if(dependencies == null)
+		// A parked operation is not scheduled until it's unparked, even if it's ready.
+		synchronized(this)
+		{
+			if(((_state.get() & (STATE_EXECUTING | STATE_FINISHED)) != 0) || (_queue != null))
+				return false;
+			
+			_enqueuedCoalescingKey = _coalescingKey;
+			_enqueuedSerialKey = serialKey;
+			_enqueueTime = System.nanoTime();
+			_parked = parked;
+			_queue = queue;
+			_reservedQueuePriority = reservedQueuePriority;
+		}
+		
+		if(OperationTracer.isEnabled())
+			OperationTracer.operationIsEnqueued(this, queue);
+		
+		return true;
+	}
+	
+	boolean reject(@NonNull Error error, OperationQueue queue)
+	{
+		synchronized(this)
+		{
+			if(((_state.get() & (STATE_EXECUTING | STATE_FINISHED)) != 0) || (_queue != queue))
+				return false;
+			
+			_error = error;
+		}
+		
+		this.cancel();
+		this.finish();
+		return true;
+	}
+	
+	void boostDependencies(@NonNull OperationQueue.QualityOfService qualityOfService)
+	{
+		// The boost is propagated through the whole chain of unfinished dependencies; each operation is visited again only if its boost is raised.
+		LinkedList<Operation> pendingOperations = new LinkedList<>(this.getDependencies());
+		while(!pendingOperations.isEmpty())
+		{
+			Operation operation = pendingOperations.removeFirst();
+			if(operation.boostQualityOfService(qualityOfService))
+				pendingOperations.addAll(operation.getDependencies());
+		}
+	}
+	
+	private boolean boostQualityOfService(@NonNull OperationQueue.QualityOfService qualityOfService)
+	{
+		synchronized(this)
+		{
+			if(this.isFinished() || ((_boostedQualityOfService != null) && (_boostedQualityOfService.ordinal() >= qualityOfService.ordinal())))
+				return false;
+			
+			_boostedQualityOfService = qualityOfService;
+			
+			// The thread is boosted while holding the lock, so that it can't be restored by its worker in the meantime.
+			if(_executingThreadID != 0)
+			{
+				try
+				{
+					if(Process.getThreadPriority(_executingThreadID) > qualityOfService.getThreadPriority())
+						Process.setThreadPriority(_executingThreadID, qualityOfService.getThreadPriority());
+				}
+				catch(RuntimeException e)
+				{
+					// The thread may have died or may not be accessible: the boost is only a hint.
+				}
+			}
+			return true;
+		}
+	}
+	
+	void executionDidEnd()
+	{
+		synchronized(this)
+		{
+			_executingThreadID = 0;
+		}
+	}
+	
+	OperationQueue.QualityOfService executionWillStart(int threadID)
+	{
+		// Returns the boost requested by the dependents so far; the later ones are applied directly to the thread.
+		synchronized(this)
+		{
+			_executingThreadID = threadID;
+			return _boostedQualityOfService;
+		}
+	}
+	
+	boolean dependsOn(@NonNull Operation operation)
+	{
+		// Walks the whole dependency graph, visiting each operation once.
+		Set<Operation> visitedOperations = new HashSet<>();
+		LinkedList<Operation> pendingOperations = new LinkedList<>(this.getDependencies());
+		while(!pendingOperations.isEmpty())
+		{
+			Operation dependency = pendingOperations.removeFirst();
+			if(dependency == operation)
+				return true;
+			
+			if(visitedOperations.add(dependency))
+				pendingOperations.addAll(dependency.getDependencies());
+		}
+		return false;
+	}
+	
+	boolean addCoalescedOperation(@NonNull Operation operation)
+	{
+		synchronized(this)
+		{
+			if(!this.isCoalescible())
+				return false;
+			
+			if(_coalescedOperations == null)
+				_coalescedOperations = new ArrayList<>();
+			_coalescedOperations.add(operation);
+			return true;
+		}
+	}
+	
+	void addCoalescedOperations(@NonNull List<Operation> operations)
+	{
+		synchronized(this)
+		{
+			if(!this.isFinished())
+			{
+				if(_coalescedOperations == null)
+					_coalescedOperations = new ArrayList<>();
+				_coalescedOperations.addAll(operations);
+				return;
+			}
+		}
+		
+		// Too late: the operations share the outcome of this one right away.
+		Error error = this.getError();
+		boolean cancelled = this.isCancelled();
+		for(Operation operation : operations)
+			operation.coalescingOperationIsFinished(cancelled, error);
+	}
+	
+	private void coalescingOperationIsFinished(boolean cancelled, Error error)
+	{
+		if(error != null)
+			this.setError(error);
+		
+		if(cancelled)
+		{
+			this.cancel();
+			this.finish();
 			return;
+		}
 		
-		synchronized(dependencies)
+		// The operation is finished without being executed: the pending dependencies don't matter anymore.
+		int state;
+		do
+		{
+			state = _state.get();
+			if((state & (STATE_EXECUTING | STATE_FINISHED)) != 0)
+				return;
+		}
+		while(!_state.compareAndSet(state, state | STATE_EXECUTING));
+		
+		this.finish();
+	}
+	
+	private boolean isCoalescible()
+	{
+		// Must be called while holding the lock.
+		return (!_coalesced && !_dispatched && (_queue != null) && ((_state.get() & (STATE_CANCELLED | STATE_EXECUTING | STATE_FINISHED)) == 0));
+	}
+	
+	boolean markCoalesced(boolean coalesced)
+	{
+		synchronized(this)
+		{
+			if(coalesced && !this.isCoalescible())
+				return false;
+			
+			_coalesced = coalesced;
+			return true;
+		}
+	}
+	
+	Object getEnqueuedCoalescingKey()
+	{
+		return _enqueuedCoalescingKey;
+	}
+	
+	Object getEnqueuedSerialKey()
+	{
+		return _enqueuedSerialKey;
+	}
+	
+	QueuePriority releaseReservedQueuePriority()
+	{
+		synchronized(this)
+		{
+			QueuePriority retObj = _reservedQueuePriority;
+			_reservedQueuePriority = null;
+			return retObj;
+		}
+	}
+	
+	List<Operation> withdraw()
+	{
+		// Returns the operation and the ones coalesced into it, or null if it can't be withdrawn from its queue anymore.
+		List<Operation> retObj;
+		OperationQueue queue;
+		Slot slot;
+		
+		synchronized(this)
+		{
+			if(!this.isCoalescible())
+				return null;
+			
+			// The slot may have already been taken by a worker that is about to dispatch the operation.
+			slot = _slot;
+			if((slot != null) && (slot.getAndSet(null) == null))
+				return null;
+			
+			_coalesced = true;
+			_slot = null;
+			queue = _queue;
+			
+			retObj = ((_coalescedOperations == null) ? new ArrayList<Operation>() : _coalescedOperations);
+			_coalescedOperations = null;
+			retObj.add(this);
+		}
+		
+		if(slot != null)
+			queue.operationIsReleased(slot);
+		
+		return retObj;
+	}
+	
+	boolean park()
+	{
+		// Fails if the operation has already been scheduled.
+		synchronized(this)
 		{
-			dependencies.remove(operation);
+			if(_parked || _dispatched || (_slot != null) || ((_state.get() & (STATE_EXECUTING | STATE_FINISHED)) != 0))
+				return false;
+			
+			_parked = true;
+			return true;
+		}
+	}
+	
+	Slot unpark()
+	{
+		synchronized(this)
+		{
+			_parked = false;
+		}
+		return this.schedule();
+	}
+	
+	Slot schedule()
+	{
+		synchronized(this)
+		{
+			if(_coalesced || _parked || (_queue == null) || (_slot != null) || !this.isReady())
+				return null;
+			
+			_slot = new Slot(this);
+			return _slot;
+		}
+	}
+	
+	boolean dispatch(@NonNull Slot slot)
+	{
+		synchronized(this)
+		{
+			if(_slot == slot)
+				_slot = null;
+			
+			if(!this.isReady())
+				return false;
+			
+			_dispatched = true;
+			_dispatchTime = System.nanoTime();
+			return true;
 		}
 	}
 	
@@ -374,13 +1033,17 @@ public abstract class Operation
 			return;
 		}
 		
-		synchronized(this)
+		int state;
+		do
 		{
-			if(!this.isReady())
+			state = _state.get();
+			if((state & ~STATE_CANCELLED) != 0)
 				return;
-			
-			_executing = true;
 		}
+		while(!_state.compareAndSet(state, state | STATE_EXECUTING));
+		
+		if(OperationTracer.isEnabled())
+			OperationTracer.operationIsStarted(this);
 		
 		this.getObserversController().notifyObserversNow(new ObserversController.NotificationBlock<Observer>()
 		{
@@ -396,20 +1059,56 @@ public abstract class Operation
 			this.finish();
 	}
 	
-	public void waitUntilFinished()
+	private @Nullable CountDownLatch getFinishedLatch()
 	{
+		// Returns null if the operation is already finished.
 		synchronized(this)
+		{
+			if(this.isFinished())
+				return null;
+			
+			if(_finishedLatch == null)
+				_finishedLatch = new CountDownLatch(1);
+			return _finishedLatch;
+		}
+	}
+	
+	public void waitUntilFinished()
+	{
+		CountDownLatch finishedLatch = this.getFinishedLatch();
+		if(finishedLatch == null)
+			return;
+		
+		// Keeps waiting if interrupted, then restores the interrupted status of the thread.
+		boolean interrupted = false;
+		while(true)
 		{
 			try
 			{
-				while(!_finished)
-					this.wait();
+				finishedLatch.await();
+				break;
 			}
 			catch(InterruptedException e)
 			{
-				Log.e("JFFramework", "Thread interrupted.", e);
+				interrupted = true;
 			}
 		}
+		
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	public boolean waitUntilFinished(long timeout) throws InterruptedException
+	{
+		CountDownLatch finishedLatch = this.getFinishedLatch();
+		return ((finishedLatch == null) || finishedLatch.await(Math.max(0, timeout), TimeUnit.MILLISECONDS));
+	}
+	
+	public void waitUntilFinishedInterruptibly() throws InterruptedException
+	{
+		CountDownLatch finishedLatch = this.getFinishedLatch();
+		if(finishedLatch != null)
+			finishedLatch.await();
 	}
 	
 	// endregion
@@ -24,19 +24,34 @@
 
 package com.jackfelle.jfkit.core.operations;
 
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.jackfelle.jfkit.data.Blocks;
+import com.jackfelle.jfkit.data.Error;
 import com.jackfelle.jfkit.utilities.ObjectIdentifier;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -48,6 +63,267 @@ public class OperationQueue implements Operation.Observer
 	
 	private static final String TAG = OperationQueue.class.getSimpleName();
 	
+	// Error codes
+	public static final int ERROR_CAPACITY_EXCEEDED = 1;
+	public static final int ERROR_OPERATION_DROPPED = 2;
+	
+	public static final int UNBOUNDED_CAPACITY = Integer.MAX_VALUE;
+	public static final double NO_RATE_LIMIT = 0;
+	public static final long DEFAULT_KEEP_ALIVE_TIME = 30000;
+	public static final long DEFAULT_AGING_INTERVAL = 1000;
+	public static final long DEFAULT_IDLE_TIME_BUDGET = 4;
+	public static final long DEFAULT_MAIN_THREAD_TIME_BUDGET = 4;
+	
+	private static final int TARGET_QUEUE_DRAIN_LIMIT = 16;
+	
+	private static final long SCHEDULING_STRIDE = 1 << 20;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Enumerations)
+	
+	public enum CoalescingPolicy
+	{
+		MERGE,
+		REPLACE
+	}
+	
+	public enum OverflowPolicy
+	{
+		BLOCK,
+		CALLER_RUNS,
+		DROP_OLDEST,
+		REJECT
+	}
+	
+	public enum QualityOfService
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Values
+		
+		BACKGROUND(Process.THREAD_PRIORITY_BACKGROUND),
+		UTILITY((Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_BACKGROUND) / 2),
+		USER_INITIATED(Process.THREAD_PRIORITY_FOREGROUND),
+		USER_INTERACTIVE(Process.THREAD_PRIORITY_DISPLAY);
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private final int _threadPriority;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties accessors - Data
+		
+		public int getThreadPriority()
+		{
+			return _threadPriority;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		QualityOfService(int threadPriority)
+		{
+			_threadPriority = threadPriority;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	public enum SchedulingPolicy
+	{
+		STRICT_PRIORITY,
+		AGING,
+		WEIGHTED_FAIR_SHARE
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Classes)
+	
+	// The operations sharing a serial key: the active one is scheduled, the others wait for their turn.
+	private static final class SerialLane
+	{
+		private @NonNull Operation _activeOperation;
+		private final @NonNull LinkedList<Operation> _pendingOperations;
+		
+		private SerialLane(@NonNull Operation activeOperation)
+		{
+			_activeOperation = activeOperation;
+			_pendingOperations = new LinkedList<>();
+		}
+	}
+	
+	// Runs a worker of a queue on the workers of its target queue.
+	private static final class ForwardedWorker implements Blocks.Block
+	{
+		private final @NonNull OperationQueue _queue;
+		
+		private ForwardedWorker(@NonNull OperationQueue queue)
+		{
+			_queue = queue;
+		}
+		
+		@Override public void execute()
+		{
+			_queue.runWorker();
+		}
+	}
+	
+	public static final class ScheduledTask
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Execution
+		
+		private final Blocks.Block _block;
+		private boolean _cancelled;
+		private long _fireTime;
+		private Operation _operation;
+		private final long _period;
+		private final @NonNull OperationQueue _queue;
+		private TimerWheel.Timeout _timeout;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties accessors - Execution
+		
+		public boolean isCancelled()
+		{
+			synchronized(this)
+			{
+				return _cancelled;
+			}
+		}
+		
+		public boolean isPeriodic()
+		{
+			return (_period > 0);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		private ScheduledTask(@NonNull OperationQueue queue, @NonNull Operation operation)
+		{
+			// Execution
+			_block = null;
+			_cancelled = false;
+			_fireTime = 0;
+			_operation = operation;
+			_period = 0;
+			_queue = queue;
+			_timeout = null;
+		}
+		
+		private ScheduledTask(@NonNull OperationQueue queue, @NonNull Blocks.Block block, long period)
+		{
+			// Execution
+			_block = block;
+			_cancelled = false;
+			_fireTime = 0;
+			_operation = null;
+			_period = period;
+			_queue = queue;
+			_timeout = null;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Execution management
+		
+		public void cancel()
+		{
+			TimerWheel.Timeout timeout;
+			Operation operation;
+			
+			synchronized(this)
+			{
+				if(_cancelled)
+					return;
+				
+				_cancelled = true;
+				
+				timeout = _timeout;
+				_timeout = null;
+				operation = (this.isPeriodic() ? null : _operation);
+			}
+			
+			boolean pending = ((timeout != null) && TimerWheel.getSharedTimerWheel().cancel(timeout));
+			if(operation == null)
+				return;
+			
+			operation.cancel();
+			
+			// The operation has never been added to the queue: it's added now, so that it can finish as any other cancelled operation.
+			if(pending)
+				_queue.addOperation(operation, false, false);
+		}
+		
+		private void fire()
+		{
+			Operation operation;
+			
+			synchronized(this)
+			{
+				if(_cancelled)
+					return;
+				
+				_timeout = null;
+				
+				if(!this.isPeriodic())
+					operation = _operation;
+				else
+				{
+					// If the previous operation is still waiting or executing, this round is skipped instead of piling up operations.
+					Operation previousOperation = _operation;
+					operation = (((previousOperation == null) || previousOperation.isFinished()) ? new BlockOperation(_block) : null);
+					if(operation != null)
+						_operation = operation;
+					
+					long now = System.nanoTime();
+					long period = TimeUnit.MILLISECONDS.toNanos(_period);
+					_fireTime += period;
+					if(_fireTime < now)
+						_fireTime += ((now - _fireTime) / period + 1) * period;
+					
+					this.schedule(TimeUnit.NANOSECONDS.toMillis(_fireTime - now));
+				}
+			}
+			
+			// The timer thread is shared by every queue, so it must never wait for capacity or execute the operation itself.
+			if(operation != null)
+				_queue.addOperation(operation, false, false);
+		}
+		
+		private void schedule(long delay)
+		{
+			synchronized(this)
+			{
+				if(_cancelled)
+					return;
+				
+				if(_fireTime == 0)
+					_fireTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+				
+				_timeout = TimerWheel.getSharedTimerWheel().schedule(new Runnable()
+				{
+					@Override public void run()
+					{
+						ScheduledTask.this.fire();
+					}
+				}, delay);
+			}
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Memory
@@ -55,520 +331,2213 @@ public class OperationQueue implements Operation.Observer
 	private static OperationQueue _backgroundOperationQueue;
 	private static OperationQueue _mainOperationQueue;
 	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Capacity
+	
+	private int _backlogCount;
+	private @NonNull int[] _backlogCounts;
+	private volatile boolean _bounded;
+	private @NonNull int[] _capacities;
+	private int _capacity;
+	private @NonNull Object _capacityLock;
+	private @NonNull OverflowPolicy _overflowPolicy;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Coalescing
+	
+	private volatile @NonNull CoalescingPolicy _coalescingPolicy;
+	private @NonNull Map<Object, Operation> _pendingOperationsByCoalescingKey;
+	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Concurrency
 	
-	private int _executingConcurrentOperationCount;
-	private @NonNull Handler _mainHandler;
+	private int _busyWorkersCount;
+	private volatile ConcurrencyController _concurrencyController;
+	private int _executingOperationsCount;
+	private Executor _executor;
+	private boolean _idleHandlerScheduled;
+	private long _idleTimeBudget;
+	private int _idleWorkersCount;
+	private long _keepAliveTime;
+	private Handler _mainHandler;
+	private boolean _mainThreadDrainScheduled;
+	private long _mainThreadTimeBudget;
 	private int _maxConcurrentOperationCount;
-	private boolean _needsStartWorkers;
+	private int _pendingWakeUpsCount;
+	private volatile QualityOfService _qualityOfService;
+	private volatile boolean _qualityOfServiceBoostEnabled;
+	private static volatile boolean _qualityOfServiceBoostUsed = false;
+	private volatile OperationQueue _targetQueue;
+	private int _workersCount;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Data
 	
+	private @NonNull OperationQueueMetrics _metrics;
 	private String _name;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Properties - Execution
 	
+	private @NonNull ReadyQueue _idleReadyQueue; // Operations deferred until the main thread is idle.
 	private boolean _mainQueue;
-	private @NonNull Map<Operation.QueuePriority, List<Operation>> _queues;
+	private @NonNull Set<Operation> _operations;
+	private @NonNull AtomicInteger _outstandingTasksCount; // Tracked operations and plain blocks that are not finished yet.
+	private @NonNull Object _quiescenceLock;
+	private @NonNull Map<Operation.QueuePriority, ReadyQueue> _readyQueues;
+	private @NonNull Map<Object, SerialLane> _serialLanes;
+	private @NonNull ReadyQueue[] _sortedReadyQueues;
 	private boolean _suspended;
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Properties accessors - Concurrency
+	// region Properties - Rate limit
 	
-	private static int getRuntimeAvailableProcessors()
+	private volatile TokenBucket _rateLimiter;
+	private long _rateLimitWakeUpTime;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Scheduling
+	
+	private long _agingInterval;
+	private @NonNull SchedulingPolicy _schedulingPolicy;
+	private @NonNull int[] _schedulingWeights;
+	private long _virtualTime;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Capacity
+	
+	private boolean isBounded()
 	{
-		return Runtime.getRuntime().availableProcessors();
+		return _bounded;
 	}
 	
-	private int getExecutingConcurrentOperationCount()
+	public int getCapacity()
 	{
-		synchronized(this)
+		synchronized(_capacityLock)
 		{
-			return _executingConcurrentOperationCount;
+			return _capacity;
 		}
 	}
 	
-	protected @NonNull Handler getMainHandler()
+	public void setCapacity(int capacity)
 	{
-		return _mainHandler;
+		if(capacity < 1)
+			capacity = UNBOUNDED_CAPACITY;
+		
+		synchronized(_capacityLock)
+		{
+			_capacity = capacity;
+			if(capacity != UNBOUNDED_CAPACITY)
+				_bounded = true;
+			
+			_capacityLock.notifyAll();
+		}
 	}
 	
-	public int getMaxConcurrentOperationCount()
+	public int getCapacity(@NonNull Operation.QueuePriority queuePriority)
 	{
-		synchronized(this)
+		synchronized(_capacityLock)
 		{
-			return _maxConcurrentOperationCount;
+			return _capacities[queuePriority.ordinal()];
 		}
 	}
 	
-	public void setMaxConcurrentOperationCount(int maxConcurrentOperationCount)
+	public void setCapacity(@NonNull Operation.QueuePriority queuePriority, int capacity)
 	{
-		if(this.isMainQueue())
-			maxConcurrentOperationCount = 1;
-		else if(maxConcurrentOperationCount < 1)
-			maxConcurrentOperationCount = OperationQueue.getRuntimeAvailableProcessors();
+		if(capacity < 1)
+			capacity = UNBOUNDED_CAPACITY;
 		
-		synchronized(this)
+		synchronized(_capacityLock)
 		{
-			if(_maxConcurrentOperationCount == maxConcurrentOperationCount)
-				return;
-			
-			int oldVal = _maxConcurrentOperationCount;
-			_maxConcurrentOperationCount = maxConcurrentOperationCount;
-			
-			Log.i(TAG, String.format(Locale.US, "OperationQueue<%d> did change max concurrent operation count from '%d' to '%d'.", ObjectIdentifier.getID(this), oldVal, maxConcurrentOperationCount));
+			_capacities[queuePriority.ordinal()] = capacity;
+			if(capacity != UNBOUNDED_CAPACITY)
+				_bounded = true;
 			
-			if(oldVal >= maxConcurrentOperationCount)
-				return;
+			_capacityLock.notifyAll();
 		}
-		
-		this.setNeedsStartWorkers();
 	}
 	
-	// endregion
-	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Properties accessors - Data
-	
-	public String getName()
+	public @NonNull OverflowPolicy getOverflowPolicy()
 	{
-		synchronized(this)
+		synchronized(_capacityLock)
 		{
-			return _name;
+			return _overflowPolicy;
 		}
 	}
 	
-	public void setName(String name)
+	public void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy)
 	{
-		synchronized(this)
+		synchronized(_capacityLock)
 		{
-			_name = name;
+			_overflowPolicy = overflowPolicy;
+			_capacityLock.notifyAll();
 		}
 	}
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Properties accessors - Execution
+	// region Properties accessors - Coalescing
 	
-	private boolean isExecuting()
+	public @NonNull CoalescingPolicy getCoalescingPolicy()
 	{
-		return (this.getExecutingConcurrentOperationCount() > 0);
+		return _coalescingPolicy;
 	}
 	
-	public boolean isMainQueue()
+	public void setCoalescingPolicy(@NonNull CoalescingPolicy coalescingPolicy)
 	{
-		return _mainQueue;
+		_coalescingPolicy = coalescingPolicy;
 	}
 	
-	public @NonNull List<Operation> getOperations()
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Concurrency
+	
+	private static int getRuntimeAvailableProcessors()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	public boolean isAdaptiveConcurrencyEnabled()
+	{
+		return (_concurrencyController != null);
+	}
+	
+	public void setAdaptiveConcurrency(int minConcurrentOperationCount, int maxConcurrentOperationCount)
 	{
-		Map<Operation.QueuePriority, List<Operation>> queues = this.getQueues();
+		// The main queue is always serial.
+		if(this.isMainQueue())
+			return;
 		
-		List<Operation> retObj = new ArrayList<>();
-		for(List<Operation> queue : queues.values())
+		minConcurrentOperationCount = Math.max(1, minConcurrentOperationCount);
+		if(maxConcurrentOperationCount < minConcurrentOperationCount)
+			throw new RuntimeException("The maximum concurrent operation count must not be less than the minimum.");
+		
+		ConcurrencyController concurrencyController;
+		synchronized(this)
 		{
-			synchronized(queue)
-			{
-				retObj.addAll(queue);
-			}
+			concurrencyController = new ConcurrencyController(minConcurrentOperationCount, maxConcurrentOperationCount, _maxConcurrentOperationCount);
+			_concurrencyController = concurrencyController;
 		}
-		return retObj;
+		
+		Log.i(TAG, String.format(Locale.US, "OperationQueue<%d> did enable adaptive concurrency between '%d' and '%d'.", ObjectIdentifier.getID(this), minConcurrentOperationCount, maxConcurrentOperationCount));
+		
+		this.updateMaxConcurrentOperationCount(concurrencyController, concurrencyController.getConcurrencyLimit());
 	}
 	
-	private @NonNull Map<Operation.QueuePriority, List<Operation>> getQueues()
+	public void disableAdaptiveConcurrency()
 	{
-		return _queues;
+		// The queue keeps the last concurrent operation count chosen by the controller.
+		_concurrencyController = null;
 	}
 	
-	protected void setNeedsStartWorkers()
+	int getExecutingConcurrentOperationCount()
+	{
+		synchronized(this)
+		{
+			return _executingOperationsCount;
+		}
+	}
+	
+	public Executor getExecutor()
+	{
+		synchronized(this)
+		{
+			return _executor;
+		}
+	}
+	
+	public void setExecutor(Executor executor)
 	{
 		synchronized(this)
 		{
-			if(_needsStartWorkers)
+			if(_executor == executor)
 				return;
 			
-			_needsStartWorkers = true;
+			_executor = executor;
 		}
 		
-		new Thread(new Runnable()
-		{
-			@Override public void run()
-			{
-				synchronized(this)
-				{
-					if(!_needsStartWorkers)
-						return;
-					
-					_needsStartWorkers = false;
-				}
-				
-				OperationQueue.this.startWorkers();
-			}
-		}).start();
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
 	}
 	
-	public boolean isSuspended()
+	public long getKeepAliveTime()
 	{
 		synchronized(this)
 		{
-			return _suspended;
+			return _keepAliveTime;
 		}
 	}
 	
-	public void setSuspended(boolean suspended)
+	public void setKeepAliveTime(long keepAliveTime)
 	{
+		if(keepAliveTime < 0)
+			keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+		
 		synchronized(this)
 		{
-			if(_suspended == suspended)
+			if(_keepAliveTime == keepAliveTime)
 				return;
 			
-			_suspended = suspended;
+			_keepAliveTime = keepAliveTime;
 			
-			if(!_suspended)
-				this.setNeedsStartWorkers();
+			// Wakes up the idle workers so that they can reschedule their timeout.
+			this.notifyAll();
 		}
 	}
 	
-	// endregion
-	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Memory management
+	public long getIdleTimeBudget()
+	{
+		synchronized(this)
+		{
+			return _idleTimeBudget;
+		}
+	}
 	
-	public static @NonNull OperationQueue getBackgroundQueue()
+	public void setIdleTimeBudget(long idleTimeBudget)
 	{
-		if(_backgroundOperationQueue == null)
+		synchronized(this)
 		{
-			synchronized(OperationQueue.class)
-			{
-				if(_backgroundOperationQueue == null)
-					_backgroundOperationQueue = OperationQueue.newQueue(OperationQueue.class.getSimpleName() + ".background", Integer.MAX_VALUE);
-			}
+			_idleTimeBudget = Math.max(0, idleTimeBudget);
 		}
-		return _backgroundOperationQueue;
 	}
 	
-	public static @NonNull OperationQueue getMainQueue()
+	protected @NonNull Handler getMainHandler()
+	{
+		// Created lazily, so that the queues that never use it can be created where there is no main looper.
+		synchronized(this)
+		{
+			if(_mainHandler == null)
+				_mainHandler = new Handler(Looper.getMainLooper());
+			return _mainHandler;
+		}
+	}
+	
+	public long getMainThreadTimeBudget()
+	{
+		synchronized(this)
+		{
+			return _mainThreadTimeBudget;
+		}
+	}
+	
+	public void setMainThreadTimeBudget(long mainThreadTimeBudget)
+	{
+		synchronized(this)
+		{
+			_mainThreadTimeBudget = Math.max(0, mainThreadTimeBudget);
+		}
+	}
+	
+	public int getMaxConcurrentOperationCount()
+	{
+		synchronized(this)
+		{
+			return _maxConcurrentOperationCount;
+		}
+	}
+	
+	public void setMaxConcurrentOperationCount(int maxConcurrentOperationCount)
+	{
+		if(this.isMainQueue())
+			maxConcurrentOperationCount = 1;
+		else if(maxConcurrentOperationCount < 1)
+			maxConcurrentOperationCount = OperationQueue.getRuntimeAvailableProcessors();
+		
+		synchronized(this)
+		{
+			// An explicit value disables the adaptive concurrency.
+			_concurrencyController = null;
+			
+			if(_maxConcurrentOperationCount == maxConcurrentOperationCount)
+				return;
+			
+			int oldVal = _maxConcurrentOperationCount;
+			_maxConcurrentOperationCount = maxConcurrentOperationCount;
+			
+			Log.i(TAG, String.format(Locale.US, "OperationQueue<%d> did change max concurrent operation count from '%d' to '%d'.", ObjectIdentifier.getID(this), oldVal, maxConcurrentOperationCount));
+			
+			if(oldVal >= maxConcurrentOperationCount)
+				return;
+		}
+		
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	public QualityOfService getQualityOfService()
+	{
+		return _qualityOfService;
+	}
+	
+	public void setQualityOfService(QualityOfService qualityOfService)
+	{
+		// The priority of the main thread is managed by the system. The workers apply the new value before their next task.
+		if(this.isMainQueue())
+			return;
+		
+		_qualityOfService = qualityOfService;
+	}
+	
+	public boolean isQualityOfServiceBoostEnabled()
+	{
+		return _qualityOfServiceBoostEnabled;
+	}
+	
+	public void setQualityOfServiceBoostEnabled(boolean qualityOfServiceBoostEnabled)
+	{
+		// When enabled, the dependencies of the operations added to this queue are executed at least at its quality of service.
+		if(qualityOfServiceBoostEnabled)
+			_qualityOfServiceBoostUsed = true;
+		_qualityOfServiceBoostEnabled = qualityOfServiceBoostEnabled;
+	}
+	
+	public OperationQueue getTargetQueue()
+	{
+		return _targetQueue;
+	}
+	
+	public void setTargetQueue(OperationQueue targetQueue)
+	{
+		if(this.isMainQueue())
+			throw new RuntimeException("The main queue can't have a target queue.");
+		
+		// Walks up the hierarchy under the class lock, so that two queues can't target each other concurrently.
+		synchronized(OperationQueue.class)
+		{
+			for(OperationQueue queue = targetQueue; queue != null; queue = queue.getTargetQueue())
+			{
+				if(queue == this)
+					throw new RuntimeException("The target queue hierarchy contains a cycle.");
+			}
+			
+			synchronized(this)
+			{
+				if(_targetQueue == targetQueue)
+					return;
+				
+				_targetQueue = targetQueue;
+			}
+		}
+		
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	private void updateMaxConcurrentOperationCount(@NonNull ConcurrencyController concurrencyController, int maxConcurrentOperationCount)
+	{
+		synchronized(this)
+		{
+			// The controller may have been replaced or disabled in the meantime.
+			if((_concurrencyController != concurrencyController) || (_maxConcurrentOperationCount == maxConcurrentOperationCount))
+				return;
+			
+			int oldVal = _maxConcurrentOperationCount;
+			_maxConcurrentOperationCount = maxConcurrentOperationCount;
+			
+			// The exceeding workers exit on their own when they look for new work.
+			if(oldVal >= maxConcurrentOperationCount)
+				return;
+		}
+		
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	public @NonNull OperationQueueMetrics getMetrics()
+	{
+		return _metrics;
+	}
+	
+	public String getName()
+	{
+		synchronized(this)
+		{
+			return _name;
+		}
+	}
+	
+	public void setName(String name)
+	{
+		synchronized(this)
+		{
+			_name = name;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Execution
+	
+	private boolean isExecuting()
+	{
+		return (this.getExecutingConcurrentOperationCount() > 0);
+	}
+	
+	public boolean isMainQueue()
+	{
+		return _mainQueue;
+	}
+	
+	public @NonNull List<Operation> getOperations()
+	{
+		return new ArrayList<>(this.getInternalOperations());
+	}
+	
+	private @NonNull Set<Operation> getInternalOperations()
+	{
+		return _operations;
+	}
+	
+	int getOperationsCount()
+	{
+		return this.getInternalOperations().size();
+	}
+	
+	private int getPendingTasksCount()
+	{
+		// Plain blocks are not tracked: if they are the only pending tasks, a single worker is enough to start the chain of wake-ups.
+		int retVal = this.getOperationsCount();
+		if((retVal == 0) && this.hasReadyOperations())
+			retVal = 1;
+		return retVal;
+	}
+	
+	private boolean hasReadyOperations()
+	{
+		for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+		{
+			if(!readyQueue.isEmpty())
+				return true;
+		}
+		return false;
+	}
+	
+	private @NonNull Map<Operation.QueuePriority, ReadyQueue> getReadyQueues()
+	{
+		return _readyQueues;
+	}
+	
+	private @NonNull ReadyQueue[] getSortedReadyQueues()
+	{
+		return _sortedReadyQueues;
+	}
+	
+	protected void setNeedsStartWorkers()
+	{
+		this.startWorkers(1);
+	}
+	
+	protected void setNeedsStartWorkers(int count)
+	{
+		this.startWorkers(count);
+	}
+	
+	public boolean isSuspended()
+	{
+		synchronized(this)
+		{
+			return _suspended;
+		}
+	}
+	
+	public void setSuspended(boolean suspended)
+	{
+		synchronized(this)
+		{
+			if(_suspended == suspended)
+				return;
+			
+			_suspended = suspended;
+			
+			if(!_suspended)
+			{
+				this.setNeedsStartWorkers(this.getPendingTasksCount());
+				if(!_idleReadyQueue.isEmpty())
+					this.scheduleIdleHandler();
+			}
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Rate limit
+	
+	public double getRateLimit()
+	{
+		TokenBucket rateLimiter = _rateLimiter;
+		return ((rateLimiter == null) ? NO_RATE_LIMIT : rateLimiter.getRate());
+	}
+	
+	public void setRateLimit(double rateLimit, int burst)
+	{
+		// The rate limit is expressed in operations started per second; the burst is the number of operations that can be started at once after an idle period.
+		_rateLimiter = ((rateLimit > 0) ? new TokenBucket(rateLimit, burst) : null);
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	public double getRateLimit(@NonNull Operation.QueuePriority queuePriority)
+	{
+		TokenBucket rateLimiter = this.getReadyQueues().get(queuePriority).getRateLimiter();
+		return ((rateLimiter == null) ? NO_RATE_LIMIT : rateLimiter.getRate());
+	}
+	
+	public void setRateLimit(@NonNull Operation.QueuePriority queuePriority, double rateLimit, int burst)
+	{
+		this.getReadyQueues().get(queuePriority).setRateLimiter((rateLimit > 0) ? new TokenBucket(rateLimit, burst) : null);
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Scheduling
+	
+	public long getAgingInterval()
+	{
+		synchronized(this)
+		{
+			return _agingInterval;
+		}
+	}
+	
+	public void setAgingInterval(long agingInterval)
+	{
+		synchronized(this)
+		{
+			_agingInterval = ((agingInterval > 0) ? agingInterval : DEFAULT_AGING_INTERVAL);
+			
+			// The aging interval also bounds how long the operations without a deadline can be delayed by the ones with a deadline.
+			for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+				readyQueue.setAgingInterval(_agingInterval);
+			_idleReadyQueue.setAgingInterval(_agingInterval);
+		}
+	}
+	
+	public @NonNull SchedulingPolicy getSchedulingPolicy()
+	{
+		synchronized(this)
+		{
+			return _schedulingPolicy;
+		}
+	}
+	
+	public void setSchedulingPolicy(@NonNull SchedulingPolicy schedulingPolicy)
+	{
+		synchronized(this)
+		{
+			_schedulingPolicy = schedulingPolicy;
+		}
+	}
+	
+	public int getSchedulingWeight(@NonNull Operation.QueuePriority queuePriority)
+	{
+		synchronized(this)
+		{
+			return _schedulingWeights[queuePriority.ordinal()];
+		}
+	}
+	
+	public void setSchedulingWeight(@NonNull Operation.QueuePriority queuePriority, int schedulingWeight)
+	{
+		synchronized(this)
+		{
+			_schedulingWeights[queuePriority.ordinal()] = Math.max(1, schedulingWeight);
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Memory management
+	
+	public static @NonNull OperationQueue getBackgroundQueue()
+	{
+		if(_backgroundOperationQueue == null)
+		{
+			synchronized(OperationQueue.class)
+			{
+				if(_backgroundOperationQueue == null)
+					_backgroundOperationQueue = OperationQueue.newQueue(OperationQueue.class.getSimpleName() + ".background", Integer.MAX_VALUE);
+			}
+		}
+		return _backgroundOperationQueue;
+	}
+	
+	public static @NonNull OperationQueue getMainQueue()
+	{
+		if(_mainOperationQueue == null)
+		{
+			synchronized(OperationQueue.class)
+			{
+				if(_mainOperationQueue == null)
+				{
+					OperationQueue queue = new OperationQueue(true);
+					queue.setName(OperationQueue.class.getSimpleName() + ".main");
+					_mainOperationQueue = queue;
+				}
+			}
+		}
+		return _mainOperationQueue;
+	}
+	
+	public static @Nullable Executor newVirtualThreadExecutor()
+	{
+		// Virtual threads are only available on JVM 21+ hosts: the factory method is looked up reflectively, so that this code still runs on Android.
+		try
+		{
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor)method.invoke(null);
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+	}
+	
+	public static @NonNull OperationQueue newConcurrentQueue(@Nullable String name)
+	{
+		return OperationQueue.newQueue(name, 0);
+	}
+	
+	public static @NonNull OperationQueue newSerialQueue(@Nullable String name)
+	{
+		return OperationQueue.newQueue(name, 1);
+	}
+	
+	public static @NonNull OperationQueue newQueue(@Nullable String name, int maxConcurrentOperations)
+	{
+		OperationQueue retObj = new OperationQueue();
+		retObj.setMaxConcurrentOperationCount(maxConcurrentOperations);
+		retObj.setName(name);
+		return retObj;
+	}
+	
+	public OperationQueue()
+	{
+		this(false);
+	}
+	
+	protected OperationQueue(boolean mainQueue)
+	{
+		Operation.QueuePriority[] queuePriorities = Operation.QueuePriority.values();
+		Map<Operation.QueuePriority, ReadyQueue> readyQueues = new HashMap<>(queuePriorities.length);
+		for(Operation.QueuePriority queuePriority : queuePriorities)
+			readyQueues.put(queuePriority, new ReadyQueue(queuePriority));
+		
+		ReadyQueue[] sortedReadyQueues = new ReadyQueue[queuePriorities.length];
+		for(int i = 0; i < sortedReadyQueues.length; i++)
+			sortedReadyQueues[i] = readyQueues.get(Operation.QueuePriority.SORTED_VALUES_DESC[i]);
+		
+		// The weight of each priority doubles the weight of the lower one.
+		int[] schedulingWeights = new int[queuePriorities.length];
+		for(Operation.QueuePriority queuePriority : queuePriorities)
+			schedulingWeights[queuePriority.ordinal()] = 1 << queuePriority.ordinal();
+		
+		int[] capacities = new int[queuePriorities.length];
+		Arrays.fill(capacities, UNBOUNDED_CAPACITY);
+		
+		// Capacity
+		_backlogCount = 0;
+		_backlogCounts = new int[queuePriorities.length];
+		_bounded = false;
+		_capacities = capacities;
+		_capacity = UNBOUNDED_CAPACITY;
+		_capacityLock = new Object();
+		_overflowPolicy = OverflowPolicy.BLOCK;
+		
+		// Coalescing
+		_coalescingPolicy = CoalescingPolicy.MERGE;
+		_pendingOperationsByCoalescingKey = new HashMap<>();
+		
+		// Concurrency
+		_busyWorkersCount = 0;
+		_concurrencyController = null;
+		_executingOperationsCount = 0;
+		_executor = null;
+		_idleHandlerScheduled = false;
+		_idleTimeBudget = DEFAULT_IDLE_TIME_BUDGET;
+		_idleWorkersCount = 0;
+		_keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+		_mainHandler = null;
+		_mainThreadDrainScheduled = false;
+		_mainThreadTimeBudget = DEFAULT_MAIN_THREAD_TIME_BUDGET;
+		_maxConcurrentOperationCount = (mainQueue ? 1 : OperationQueue.getRuntimeAvailableProcessors());
+		_pendingWakeUpsCount = 0;
+		_qualityOfService = null;
+		_qualityOfServiceBoostEnabled = false;
+		_targetQueue = null;
+		_workersCount = 0;
+		
+		// Data
+		_metrics = new OperationQueueMetrics(this);
+		
+		// Execution
+		_idleReadyQueue = new ReadyQueue(Operation.QueuePriority.VERY_LOW);
+		_mainQueue = mainQueue;
+		_operations = Collections.newSetFromMap(new ConcurrentHashMap<Operation, Boolean>());
+		_outstandingTasksCount = new AtomicInteger(0);
+		_quiescenceLock = new Object();
+		_readyQueues = readyQueues;
+		_serialLanes = new HashMap<>();
+		_sortedReadyQueues = sortedReadyQueues;
+		_suspended = false;
+		
+		// Rate limit
+		_rateLimiter = null;
+		_rateLimitWakeUpTime = 0;
+		
+		// Scheduling
+		_agingInterval = DEFAULT_AGING_INTERVAL;
+		_schedulingPolicy = SchedulingPolicy.STRICT_PRIORITY;
+		_schedulingWeights = schedulingWeights;
+		_virtualTime = 0;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Capacity management
+	
+	private boolean dropOldestOperation(@NonNull Operation.QueuePriority queuePriority, boolean sameQueuePriorityOnly)
+	{
+		Error error = new Error(TAG, ERROR_OPERATION_DROPPED, "The operation has been dropped to make room for a newer one.");
+		Map<Operation.QueuePriority, ReadyQueue> readyQueues = this.getReadyQueues();
+		for(Operation.QueuePriority victimQueuePriority : Operation.QueuePriority.SORTED_VALUES_ASC)
+		{
+			if(victimQueuePriority.ordinal() > queuePriority.ordinal())
+				break;
+			
+			if(sameQueuePriorityOnly && (victimQueuePriority != queuePriority))
+				continue;
+			
+			ReadyQueue readyQueue = readyQueues.get(victimQueuePriority);
+			List<Blocks.Block> skippedBlocks = null;
+			try
+			{
+				Object task;
+				while((task = readyQueue.pollOldest()) != null)
+				{
+					// Plain blocks (including the workers of the queues targeting this one) don't hold any capacity: they are put back once the search is over.
+					if(!(task instanceof Operation.Slot))
+					{
+						if(skippedBlocks == null)
+							skippedBlocks = new ArrayList<>();
+						skippedBlocks.add((Blocks.Block)task);
+						continue;
+					}
+					
+					Operation.Slot slot = (Operation.Slot)task;
+					Operation operation = slot.getAndSet(null);
+					if(operation == null)
+						continue;
+					
+					_metrics.operationIsDequeued(slot.getQueuePriority());
+					if(operation.reject(error, this))
+						return true;
+				}
+			}
+			finally
+			{
+				if(skippedBlocks != null)
+				{
+					for(Blocks.Block skippedBlock : skippedBlocks)
+						readyQueue.add(skippedBlock);
+				}
+			}
+		}
+		return false;
+	}
+	
+	private void rejectOperation(@NonNull Operation operation)
+	{
+		if(operation.reject(new Error(TAG, ERROR_CAPACITY_EXCEEDED, "The operation queue is full."), null))
+			_metrics.operationIsRejected();
+	}
+	
+	private void releaseCapacity(@NonNull Operation operation)
+	{
+		if(!this.isBounded())
+			return;
+		
+		Operation.QueuePriority queuePriority = operation.releaseReservedQueuePriority();
+		if(queuePriority != null)
+			this.releaseCapacity(queuePriority);
+	}
+	
+	private void releaseCapacity(@NonNull Operation.QueuePriority queuePriority)
+	{
+		synchronized(_capacityLock)
+		{
+			_backlogCount--;
+			_backlogCounts[queuePriority.ordinal()]--;
+			_capacityLock.notifyAll();
+		}
+	}
+	
+	private OverflowPolicy reserveCapacity(@NonNull Operation.QueuePriority queuePriority, boolean callerCanWait)
+	{
+		// Returns 'null' if the capacity has been reserved, or the overflow policy to apply otherwise.
+		int index = queuePriority.ordinal();
+		while(true)
+		{
+			boolean queuePriorityIsFull;
+			synchronized(_capacityLock)
+			{
+				queuePriorityIsFull = (_backlogCounts[index] >= _capacities[index]);
+				if(!queuePriorityIsFull && (_backlogCount < _capacity))
+				{
+					_backlogCount++;
+					_backlogCounts[index]++;
+					return null;
+				}
+				
+				OverflowPolicy overflowPolicy = _overflowPolicy;
+				if(overflowPolicy == OverflowPolicy.BLOCK)
+				{
+					// A caller that can't wait gets the operation admitted over capacity instead.
+					if(!callerCanWait)
+						return overflowPolicy;
+					
+					try
+					{
+						_capacityLock.wait();
+					}
+					catch(InterruptedException e)
+					{
+						Log.e(TAG, String.format(Locale.US, "OperationQueue<%d> producer interrupted while waiting for capacity.", ObjectIdentifier.getID(this)), e);
+						Thread.currentThread().interrupt();
+						return OverflowPolicy.REJECT;
+					}
+					continue;
+				}
+				
+				if(overflowPolicy != OverflowPolicy.DROP_OLDEST)
+					return overflowPolicy;
+			}
+			
+			// If the victim can't be found among the ready operations with the same or a lower priority, the new operation is rejected instead.
+			if(!this.dropOldestOperation(queuePriority, queuePriorityIsFull))
+				return OverflowPolicy.REJECT;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Coalescing management
+	
+	private boolean coalesceOperation(@NonNull Operation operation, @NonNull Object coalescingKey)
+	{
+		// Returns true if the operation has been merged into a pending one, so that it must not be scheduled.
+		CoalescingPolicy coalescingPolicy = this.getCoalescingPolicy();
+		Map<Object, Operation> pendingOperations = _pendingOperationsByCoalescingKey;
+		Operation pendingOperation;
+		List<Operation> replacedOperations = null;
+		
+		synchronized(pendingOperations)
+		{
+			pendingOperation = pendingOperations.get(coalescingKey);
+			if((pendingOperation != null) && (pendingOperation != operation))
+			{
+				// An operation can't be folded into one that waits for it (or the other way around): it would wait for itself forever.
+				if(coalescingPolicy == CoalescingPolicy.MERGE)
+				{
+					// The operation is marked before being merged, so that it can't be scheduled by its dependencies in the meantime.
+					if(!pendingOperation.dependsOn(operation) && operation.markCoalesced(true))
+					{
+						if(pendingOperation.addCoalescedOperation(operation))
+						{
+							this.releaseCapacity(operation);
+							return true;
+						}
+						operation.markCoalesced(false);
+					}
+				}
+				else if(!operation.dependsOn(pendingOperation))
+					replacedOperations = pendingOperation.withdraw();
+			}
+			
+			// A pending operation that has been started (or can't be coalesced anymore) is simply superseded.
+			pendingOperations.put(coalescingKey, operation);
+		}
+		
+		if(replacedOperations != null)
+		{
+			this.releaseCapacity(pendingOperation);
+			this.serialLaneOperationIsDone(pendingOperation, true);
+			operation.addCoalescedOperations(replacedOperations);
+		}
+		
+		return false;
+	}
+	
+	private void operationIsNotPending(@NonNull Operation operation)
+	{
+		Object coalescingKey = operation.getEnqueuedCoalescingKey();
+		if(coalescingKey == null)
+			return;
+		
+		Map<Object, Operation> pendingOperations = _pendingOperationsByCoalescingKey;
+		synchronized(pendingOperations)
+		{
+			if(pendingOperations.get(coalescingKey) == operation)
+				pendingOperations.remove(coalescingKey);
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Concurrency management
+	
+	private void boostDependenciesIfNeeded(@NonNull Operation operation)
+	{
+		QualityOfService qualityOfService = _qualityOfService;
+		if(_qualityOfServiceBoostEnabled && (qualityOfService != null))
+			operation.boostDependencies(qualityOfService);
+	}
+	
+	private void adaptConcurrency()
+	{
+		// Samples are taken when the dispatched tasks finish, so an idle queue costs nothing.
+		ConcurrencyController concurrencyController = _concurrencyController;
+		if((concurrencyController == null) || !concurrencyController.taskIsFinished())
+			return;
+		
+		int maxConcurrentOperationCount = concurrencyController.sample(this.hasReadyOperations());
+		this.updateMaxConcurrentOperationCount(concurrencyController, maxConcurrentOperationCount);
+	}
+	
+	private void drainOnMainThread()
+	{
+		long deadline;
+		
+		synchronized(this)
+		{
+			_mainThreadDrainScheduled = false;
+			deadline = SystemClock.uptimeMillis() + _mainThreadTimeBudget;
+		}
+		
+		// Executes as many operations as the time budget allows: if there is still work to do, the next drain has already been scheduled by the last executed operation.
+		while(this.executeNextOperation())
+		{
+			if(SystemClock.uptimeMillis() >= deadline)
+				break;
+		}
+	}
+	
+	private void drainOnIdleMainThread(MessageQueue messageQueue)
+	{
+		long deadline;
+		
+		synchronized(this)
+		{
+			_idleHandlerScheduled = false;
+			deadline = SystemClock.uptimeMillis() + _idleTimeBudget;
+		}
+		
+		// Yields as soon as the budget is spent or, where the looper can tell, as soon as other messages (input, frames) are due.
+		boolean executed = false;
+		while(this.executeNextOperation(true))
+		{
+			executed = true;
+			
+			if(SystemClock.uptimeMillis() >= deadline)
+				break;
+			
+			if((messageQueue != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) && !messageQueue.isIdle())
+				break;
+		}
+		
+		// The handler is registered again behind the pending messages, so the remaining work waits for the next idle time.
+		// If nothing could be executed, the running operation registers it again when it finishes: spinning on the looper would keep it busy.
+		if(executed && !_idleReadyQueue.isEmpty())
+			this.scheduleIdleHandler();
+	}
+	
+	private void runWorker()
+	{
+		// Workers may run on borrowed threads (executors, target queues), so the original priority of the thread is restored when they leave.
+		QualityOfService appliedQualityOfService = null;
+		int threadPriority = Process.THREAD_PRIORITY_DEFAULT;
+		
+		int executedTasksCount = 0;
+		try
+		{
+			while(true)
+			{
+				// The quality of service may change at any time, so it's checked again before each task.
+				QualityOfService qualityOfService = _qualityOfService;
+				if(qualityOfService != appliedQualityOfService)
+				{
+					if(appliedQualityOfService == null)
+						threadPriority = Process.getThreadPriority(Process.myTid());
+					Process.setThreadPriority((qualityOfService == null) ? threadPriority : qualityOfService.getThreadPriority());
+					appliedQualityOfService = qualityOfService;
+				}
+				
+				if(this.executeNextOperation())
+				{
+					// A worker running on a target queue yields from time to time, so that the other queues of the hierarchy get their share of the budget.
+					if((_targetQueue != null) && (++executedTasksCount >= TARGET_QUEUE_DRAIN_LIMIT))
+					{
+						synchronized(this)
+						{
+							_workersCount--;
+						}
+						
+						// Goes back to the end of the line of the target queue.
+						if(this.hasReadyOperations())
+							this.setNeedsStartWorkers();
+						return;
+					}
+					continue;
+				}
+				
+				synchronized(this)
+				{
+					if(_pendingWakeUpsCount > 0)
+					{
+						_pendingWakeUpsCount--;
+						continue;
+					}
+					
+					// Workers running on an executor or on a target queue never wait for new work: the executor or the target queue is responsible for reusing its threads.
+					if((_workersCount > _maxConcurrentOperationCount) || (_executor != null) || (_targetQueue != null))
+					{
+						_workersCount--;
+						return;
+					}
+					
+					_idleWorkersCount++;
+					try
+					{
+						long keepAliveTime = _keepAliveTime;
+						long deadline = System.currentTimeMillis() + keepAliveTime;
+						while(_pendingWakeUpsCount == 0)
+						{
+							long timeout = deadline - System.currentTimeMillis();
+							if(timeout <= 0)
+								break;
+							
+							this.wait(timeout);
+							
+							if(_keepAliveTime != keepAliveTime)
+							{
+								keepAliveTime = _keepAliveTime;
+								deadline = System.currentTimeMillis() + keepAliveTime;
+							}
+						}
+					}
+					catch(InterruptedException e)
+					{
+						Log.e(TAG, String.format(Locale.US, "OperationQueue<%d> worker interrupted.", ObjectIdentifier.getID(this)), e);
+					}
+					finally
+					{
+						_idleWorkersCount--;
+					}
+					
+					if(_pendingWakeUpsCount == 0)
+					{
+						_workersCount--;
+						return;
+					}
+					
+					_pendingWakeUpsCount--;
+				}
+			}
+		}
+		finally
+		{
+			if(appliedQualityOfService != null)
+				Process.setThreadPriority(threadPriority);
+		}
+	}
+	
+	private void scheduleIdleHandler()
+	{
+		Executor executor;
+		
+		synchronized(this)
+		{
+			if(_suspended || _idleHandlerScheduled)
+				return;
+			
+			_idleHandlerScheduled = true;
+			executor = _executor;
+		}
+		
+		// An executor replaces the main looper, so there is no idle time to wait for.
+		if(executor != null)
+		{
+			try
+			{
+				executor.execute(new Runnable()
+				{
+					@Override public void run()
+					{
+						OperationQueue.this.drainOnIdleMainThread(null);
+					}
+				});
+			}
+			catch(RejectedExecutionException e)
+			{
+				Log.e(TAG, String.format(Locale.US, "OperationQueue<%d> executor rejected the idle drain.", ObjectIdentifier.getID(this)), e);
+				synchronized(this)
+				{
+					_idleHandlerScheduled = false;
+				}
+			}
+			return;
+		}
+		
+		// Before API 23 the message queue of the main looper can only be retrieved on the main thread.
+		this.getMainHandler().post(new Runnable()
+		{
+			@Override public void run()
+			{
+				final MessageQueue messageQueue = Looper.myQueue();
+				messageQueue.addIdleHandler(new MessageQueue.IdleHandler()
+				{
+					@Override public boolean queueIdle()
+					{
+						OperationQueue.this.drainOnIdleMainThread(messageQueue);
+						return false;
+					}
+				});
+			}
+		});
+	}
+	
+	private void scheduleDrainOnMainThread()
+	{
+		Executor executor;
+		
+		synchronized(this)
+		{
+			if(_suspended || _mainThreadDrainScheduled)
+				return;
+			
+			_mainThreadDrainScheduled = true;
+			executor = _executor;
+		}
+		
+		Runnable runnable = new Runnable()
+		{
+			@Override public void run()
+			{
+				OperationQueue.this.drainOnMainThread();
+			}
+		};
+		
+		if(executor == null)
+		{
+			this.getMainHandler().post(runnable);
+			return;
+		}
+		
+		try
+		{
+			executor.execute(runnable);
+		}
+		catch(RejectedExecutionException e)
+		{
+			Log.e(TAG, String.format(Locale.US, "OperationQueue<%d> executor rejected the drain.", ObjectIdentifier.getID(this)), e);
+			synchronized(this)
+			{
+				_mainThreadDrainScheduled = false;
+			}
+		}
+	}
+	
+	private void startWorkers(int count)
+	{
+		// The main queue doesn't need any worker: its operations are executed in batches by the main looper.
+		if(this.isMainQueue())
+		{
+			this.scheduleDrainOnMainThread();
+			return;
+		}
+		
+		Executor executor;
+		int newWorkers;
+		OperationQueue targetQueue;
+		
+		synchronized(this)
+		{
+			if(_suspended)
+				return;
+			
+			executor = _executor;
+			targetQueue = _targetQueue;
+			
+			int maxWorkers = _maxConcurrentOperationCount;
+			
+			count = Math.min(count, maxWorkers);
+			_pendingWakeUpsCount = (int)Math.min((long)_pendingWakeUpsCount + count, maxWorkers);
+			
+			int wakeUps = Math.min(count, _idleWorkersCount);
+			for(int i = 0; i < wakeUps; i++)
+				this.notify();
+			
+			// Workers that are neither idle nor busy are already looking for something to do: new threads are started only when every worker is stuck executing an operation.
+			int searchingWorkers = _workersCount - _idleWorkersCount - _busyWorkersCount;
+			newWorkers = Math.max(0, Math.min(count - wakeUps - searchingWorkers, maxWorkers - _workersCount));
+			_workersCount += newWorkers;
+		}
+		
+		if(newWorkers == 0)
+			return;
+		
+		// The target queue executes the workers as plain blocks, so they count against its own concurrency budget.
+		if(targetQueue != null)
+		{
+			for(int i = 0; i < newWorkers; i++)
+				targetQueue.enqueueBlock(new ForwardedWorker(this));
+			return;
+		}
+		
+		String name = this.getName();
+		Runnable runnable = new Runnable()
+		{
+			@Override public void run()
+			{
+				OperationQueue.this.runWorker();
+			}
+		};
+		
+		for(int i = 0; i < newWorkers; i++)
+		{
+			if(executor == null)
+			{
+				new Thread(runnable, ((name == null) ? TAG : name)).start();
+				continue;
+			}
+			
+			try
+			{
+				executor.execute(runnable);
+			}
+			catch(RejectedExecutionException e)
+			{
+				Log.e(TAG, String.format(Locale.US, "OperationQueue<%d> executor rejected a worker.", ObjectIdentifier.getID(this)), e);
+				synchronized(this)
+				{
+					_workersCount -= (newWorkers - i);
+				}
+				return;
+			}
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Execution management
+	
+	private Object dequeueNextTask()
+	{
+		SchedulingPolicy schedulingPolicy = this.getSchedulingPolicy();
+		
+		while(true)
+		{
+			// The rate limits are enforced by deferring the dequeue: the workers go idle and are woken up by a timer when the next token is available.
+			TokenBucket rateLimiter = _rateLimiter;
+			if(rateLimiter != null)
+			{
+				long delay = rateLimiter.getDelay();
+				if(delay > 0)
+				{
+					if(this.hasReadyOperations())
+						this.scheduleRateLimitWakeUp(delay);
+					return null;
+				}
+			}
+			
+			ReadyQueue readyQueue = this.selectReadyQueue(schedulingPolicy);
+			if(readyQueue == null)
+			{
+				this.scheduleRateLimitWakeUpIfNeeded();
+				return null;
+			}
+			
+			if((rateLimiter != null) && !rateLimiter.tryAcquire())
+				continue;
+			
+			TokenBucket readyQueueRateLimiter = readyQueue.getRateLimiter();
+			if((readyQueueRateLimiter != null) && !readyQueueRateLimiter.tryAcquire())
+			{
+				if(rateLimiter != null)
+					rateLimiter.refund();
+				continue;
+			}
+			
+			// The tokens are only spent for the tasks that are really started.
+			Object task = this.pollNextTask(readyQueue);
+			if(task == null)
+			{
+				if(rateLimiter != null)
+					rateLimiter.refund();
+				if(readyQueueRateLimiter != null)
+					readyQueueRateLimiter.refund();
+				continue;
+			}
+			
+			Object retObj;
+			if(task instanceof Operation)
+			{
+				Operation operation = (Operation)task;
+				
+				this.releaseCapacity(operation);
+				_metrics.operationIsStarted(operation.getWaitTime());
+				retObj = operation;
+			}
+			else
+			{
+				if(!(task instanceof ForwardedWorker))
+					_metrics.blockIsStarted(readyQueue.getQueuePriority());
+				retObj = task;
+			}
+			
+			if(schedulingPolicy == SchedulingPolicy.WEIGHTED_FAIR_SHARE)
+			{
+				synchronized(this)
+				{
+					_virtualTime = readyQueue.getPass();
+					readyQueue.setPass(_virtualTime + SCHEDULING_STRIDE / _schedulingWeights[readyQueue.getQueuePriority().ordinal()]);
+				}
+			}
+			
+			return retObj;
+		}
+	}
+	
+	private Object pollNextTask(@NonNull ReadyQueue readyQueue)
+	{
+		// Returns a dispatched operation or a plain block, or null if the lane has been emptied in the meantime.
+		while(true)
+		{
+			Object task = readyQueue.poll();
+			if((task == null) || !(task instanceof Operation.Slot))
+				return task;
+			
+			// Empty slots belong to operations that have been finished or rescheduled in the meantime.
+			Operation.Slot slot = (Operation.Slot)task;
+			Operation operation = slot.getAndSet(null);
+			if(operation == null)
+				continue;
+			
+			_metrics.operationIsDequeued(slot.getQueuePriority());
+			if(operation.dispatch(slot))
+				return operation;
+		}
+	}
+	
+	private void scheduleRateLimitWakeUp(long delay)
+	{
+		final long wakeUpTime = SystemClock.uptimeMillis() + delay;
+		synchronized(this)
+		{
+			// A single timer is pending at any time, unless an earlier wake-up is needed.
+			if((_rateLimitWakeUpTime != 0) && (_rateLimitWakeUpTime <= wakeUpTime))
+				return;
+			
+			_rateLimitWakeUpTime = wakeUpTime;
+		}
+		
+		TimerWheel.getSharedTimerWheel().schedule(new Runnable()
+		{
+			@Override public void run()
+			{
+				OperationQueue.this.rateLimitWakeUpDidFire(wakeUpTime);
+			}
+		}, delay);
+	}
+	
+	private void scheduleRateLimitWakeUpIfNeeded()
+	{
+		// Looks for the lanes that have work to do but no token left.
+		long delay = Long.MAX_VALUE;
+		for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+		{
+			TokenBucket rateLimiter = readyQueue.getRateLimiter();
+			if((rateLimiter == null) || readyQueue.isEmpty())
+				continue;
+			
+			long readyQueueDelay = rateLimiter.getDelay();
+			if(readyQueueDelay > 0)
+				delay = Math.min(delay, readyQueueDelay);
+		}
+		
+		if(delay != Long.MAX_VALUE)
+			this.scheduleRateLimitWakeUp(delay);
+	}
+	
+	private void rateLimitWakeUpDidFire(long wakeUpTime)
+	{
+		synchronized(this)
+		{
+			if(_rateLimitWakeUpTime == wakeUpTime)
+				_rateLimitWakeUpTime = 0;
+		}
+		
+		this.setNeedsStartWorkers(this.getPendingTasksCount());
+	}
+	
+	private ReadyQueue selectReadyQueue(@NonNull SchedulingPolicy schedulingPolicy)
+	{
+		ReadyQueue retObj = null;
+		
+		switch(schedulingPolicy)
+		{
+			case STRICT_PRIORITY:
+			{
+				for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+				{
+					if(readyQueue.isDispatchable())
+						return readyQueue;
+				}
+				break;
+			}
+			case AGING:
+			{
+				// Each priority level is raised by one step for every aging interval its oldest operation has been waiting.
+				long agingInterval = this.getAgingInterval();
+				long now = SystemClock.uptimeMillis();
+				long bestPriority = Long.MIN_VALUE;
+				for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+				{
+					if(!readyQueue.isDispatchable())
+						continue;
+					
+					long priority = readyQueue.getQueuePriority().ordinal() + Math.max(0, now - readyQueue.getOldestReadyTime()) / agingInterval;
+					if(priority > bestPriority)
+					{
+						bestPriority = priority;
+						retObj = readyQueue;
+					}
+				}
+				break;
+			}
+			case WEIGHTED_FAIR_SHARE:
+			{
+				// Stride scheduling: the lane with the lowest pass wins, and lanes that were empty can't claim the time they have not used.
+				synchronized(this)
+				{
+					for(ReadyQueue readyQueue : this.getSortedReadyQueues())
+					{
+						if(!readyQueue.isDispatchable())
+							continue;
+						
+						if(readyQueue.getPass() < _virtualTime)
+							readyQueue.setPass(_virtualTime);
+						
+						if((retObj == null) || (readyQueue.getPass() < retObj.getPass()))
+							retObj = readyQueue;
+					}
+				}
+				break;
+			}
+		}
+		
+		return retObj;
+	}
+	
+	private boolean executeOperation(@NonNull Operation.Slot slot)
+	{
+		// The operation is executed on the current thread, but it still counts as executed by this queue until it finishes: a suspended or busy queue can't take it.
+		synchronized(this)
+		{
+			if(_suspended || this.isMainQueue() || (_executingOperationsCount >= _maxConcurrentOperationCount))
+				return false;
+			
+			_executingOperationsCount++;
+		}
+		
+		Operation operation = slot.getAndSet(null);
+		if((operation == null) || !operation.dispatch(slot))
+		{
+			synchronized(this)
+			{
+				_executingOperationsCount--;
+			}
+			
+			// The execution slot taken in the meantime may have turned a worker away.
+			if(this.hasReadyOperations())
+				this.setNeedsStartWorkers();
+			return true;
+		}
+		
+		_metrics.operationIsStarted(operation.getWaitTime());
+		operation.start();
+		return true;
+	}
+	
+	private void executeBlock(@NonNull Blocks.Block block)
+	{
+		long startTime = System.nanoTime();
+		try
+		{
+			block.execute();
+		}
+		finally
+		{
+			long executionTime = System.nanoTime() - startTime;
+			boolean forwardedWorker = (block instanceof ForwardedWorker);
+			if(!forwardedWorker)
+				_metrics.blockIsFinished(executionTime);
+			if(OperationTracer.isEnabled())
+				OperationTracer.blockIsExecuted(this, startTime, executionTime);
+			
+			synchronized(this)
+			{
+				_executingOperationsCount--;
+			}
+			
+			if(!forwardedWorker)
+				this.tasksAreFinished(1);
+			this.adaptConcurrency();
+			this.setNeedsStartWorkers();
+		}
+	}
+	
+	private void startBoostableOperation(@NonNull Operation operation)
+	{
+		// The thread is registered in the operation, so that it can be boosted while the operation is running.
+		int threadID = Process.myTid();
+		int threadPriority = Process.getThreadPriority(threadID);
+		QualityOfService boostedQualityOfService = operation.executionWillStart(threadID);
+		if((boostedQualityOfService != null) && (boostedQualityOfService.getThreadPriority() < threadPriority))
+			Process.setThreadPriority(boostedQualityOfService.getThreadPriority());
+		
+		try
+		{
+			operation.start();
+		}
+		finally
+		{
+			operation.executionDidEnd();
+			if(Process.getThreadPriority(threadID) != threadPriority)
+				Process.setThreadPriority(threadPriority);
+		}
+	}
+	
+	private boolean executeNextOperation()
+	{
+		return this.executeNextOperation(false);
+	}
+	
+	private boolean executeNextOperation(boolean deferredUntilIdle)
+	{
+		synchronized(this)
+		{
+			if(_suspended || (_executingOperationsCount >= _maxConcurrentOperationCount))
+				return false;
+			
+			_executingOperationsCount++;
+		}
+		
+		Object task = (deferredUntilIdle ? this.pollNextTask(_idleReadyQueue) : this.dequeueNextTask());
+		if(task == null)
+		{
+			synchronized(this)
+			{
+				_executingOperationsCount--;
+			}
+			return false;
+		}
+		
+		synchronized(this)
+		{
+			_busyWorkersCount++;
+		}
+		
+		// Wakes up another worker if there is still work to do: this way the workers are woken up one at a time and only when they are really needed.
+		if(this.hasReadyOperations())
+			this.setNeedsStartWorkers();
+		
+		// The execution slot is released by the operation itself when it finishes: asynchronous operations don't keep the worker busy while they are running.
+		try
+		{
+			if(!(task instanceof Operation))
+				this.executeBlock((Blocks.Block)task);
+			else if(_qualityOfServiceBoostUsed && !this.isMainQueue())
+				this.startBoostableOperation((Operation)task);
+			else
+				((Operation)task).start();
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				_busyWorkersCount--;
+			}
+		}
+		
+		return true;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Operations management
+	
+	public void addBlock(@NonNull Blocks.Block block)
+	{
+		// Bounded queues need an operation to track the reserved capacity, so the overflow policy is applied through the regular path.
+		if(this.isBounded())
+		{
+			this.addOperation(new BlockOperation(block), false);
+			return;
+		}
+		
+		this.enqueueBlock(block);
+	}
+	
+	private void enqueueBlock(@NonNull Blocks.Block block)
+	{
+		// Plain blocks skip the operation machinery: they are only visible through the metrics of the queue. The workers of the queues targeting this one are not tasks of this queue: they only borrow its concurrency budget.
+		if(!(block instanceof ForwardedWorker))
+		{
+			_metrics.blockIsEnqueued();
+			_outstandingTasksCount.incrementAndGet();
+		}
+		this.getReadyQueues().get(Operation.QueuePriority.NORMAL).add(block);
+		this.setNeedsStartWorkers();
+	}
+	
+	public void addOperation(@NonNull Blocks.Block executionBlock)
+	{
+		this.addOperation(new BlockOperation(executionBlock), false);
+	}
+	
+	public void addOperation(@NonNull Blocks.Block executionBlock, boolean waitUntilFinished)
 	{
-		if(_mainOperationQueue == null)
-		{
-			synchronized(OperationQueue.class)
-			{
-				if(_mainOperationQueue == null)
-				{
-					OperationQueue queue = new OperationQueue(true);
-					queue.setName(OperationQueue.class.getSimpleName() + ".main");
-					_mainOperationQueue = queue;
-				}
-			}
-		}
-		return _mainOperationQueue;
+		this.addOperation(new BlockOperation(executionBlock), waitUntilFinished);
 	}
 	
-	public static @NonNull OperationQueue newConcurrentQueue(@Nullable String name)
+	public @NonNull ScheduledTask addOperation(@NonNull Blocks.Block executionBlock, long delay)
 	{
-		return OperationQueue.newQueue(name, 0);
+		return this.addOperation(new BlockOperation(executionBlock), delay);
 	}
 	
-	public static @NonNull OperationQueue newSerialQueue(@Nullable String name)
+	public @NonNull ScheduledTask addOperation(@NonNull Operation operation, long delay)
 	{
-		return OperationQueue.newQueue(name, 1);
+		ScheduledTask retObj = new ScheduledTask(this, operation);
+		retObj.schedule(delay);
+		return retObj;
 	}
 	
-	public static @NonNull OperationQueue newQueue(@Nullable String name, int maxConcurrentOperations)
+	public @NonNull ScheduledTask addPeriodicOperation(@NonNull Blocks.Block executionBlock, long delay, long period)
 	{
-		OperationQueue retObj = new OperationQueue();
-		retObj.setMaxConcurrentOperationCount(maxConcurrentOperations);
-		retObj.setName(name);
+		if(period <= 0)
+			throw new RuntimeException("The period of a periodic operation must be greater than zero.");
+		
+		ScheduledTask retObj = new ScheduledTask(this, executionBlock, period);
+		retObj.schedule(delay);
 		return retObj;
 	}
 	
-	public OperationQueue()
+	public void addOperation(@NonNull Operation operation)
 	{
-		this(false);
+		this.addOperation(operation, false);
 	}
 	
-	protected OperationQueue(boolean mainQueue)
+	public void addOperation(@NonNull Operation operation, boolean waitUntilFinished)
 	{
-		Operation.QueuePriority[] queuePriorities = Operation.QueuePriority.values();
-		Map<Operation.QueuePriority, List<Operation>> queues = new HashMap<>(queuePriorities.length);
-		for(Operation.QueuePriority queuePriority : queuePriorities)
-			queues.put(queuePriority, new LinkedList<Operation>());
+		this.addOperation(operation, waitUntilFinished, true);
+	}
+	
+	private void addOperation(@NonNull Operation operation, boolean waitUntilFinished, boolean callerCanWait)
+	{
+		OverflowPolicy overflowPolicy = null;
+		Operation.QueuePriority reservedQueuePriority = null;
+		if(this.isBounded())
+		{
+			Operation.QueuePriority queuePriority = operation.getQueuePriority();
+			overflowPolicy = this.reserveCapacity(queuePriority, callerCanWait);
+			if(overflowPolicy == null)
+				reservedQueuePriority = queuePriority;
+			else if(overflowPolicy == OverflowPolicy.REJECT)
+			{
+				this.rejectOperation(operation);
+				return;
+			}
+		}
 		
-		// Concurrency
-		_executingConcurrentOperationCount = 0;
-		_mainHandler = new Handler(Looper.getMainLooper());
-		_maxConcurrentOperationCount = (mainQueue ? 1 : OperationQueue.getRuntimeAvailableProcessors());
-		_needsStartWorkers = false;
+		// The operation must be tracked before being enqueued, because it may finish as soon as it's enqueued.
+		// An operation that is already tracked (pending in this queue) keeps its entry if it's rejected.
+		Set<Operation> operations = this.getInternalOperations();
+		boolean tracked = operations.add(operation);
+		_outstandingTasksCount.incrementAndGet();
+		if(!this.enqueueOperation(operation, reservedQueuePriority))
+		{
+			if(tracked)
+				operations.remove(operation);
+			this.tasksAreFinished(1);
+			if(reservedQueuePriority != null)
+				this.releaseCapacity(reservedQueuePriority);
+			_metrics.operationIsRejected();
+			return;
+		}
+		_metrics.operationIsEnqueued();
+		this.boostDependenciesIfNeeded(operation);
 		
-		// Execution
-		_mainQueue = mainQueue;
-		_queues = queues;
-		_suspended = false;
+		Object coalescingKey = operation.getEnqueuedCoalescingKey();
+		if((coalescingKey != null) && this.coalesceOperation(operation, coalescingKey))
+		{
+			if(waitUntilFinished)
+				operation.waitUntilFinished();
+			return;
+		}
+		
+		// With the caller-runs policy, the operation is executed by the caller if it's ready and the queue can take it; otherwise it's admitted over capacity.
+		Operation.Slot slot = operation.schedule();
+		if(slot != null)
+		{
+			boolean callerRuns = ((overflowPolicy == OverflowPolicy.CALLER_RUNS) && callerCanWait && !this.isDeferredUntilIdle(slot));
+			if(!callerRuns || !this.executeOperation(slot))
+				this.operationIsReady(slot);
+		}
+		
+		if(waitUntilFinished)
+			operation.waitUntilFinished();
 	}
 	
-	// endregion
-	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Concurrency management
+	public void addOperations(@NonNull List<Operation> operations)
+	{
+		this.addOperations(operations, false);
+	}
 	
-	private void startWorkers()
+	public void addOperations(@NonNull List<Operation> operations, boolean waitUntilFinished)
 	{
-		int currentWorkers;
-		int maxWorkers;
+		int operationsCount = operations.size();
+		if(operationsCount == 0)
+			return;
 		
-		synchronized(this)
+		if(operationsCount == 1)
 		{
-			if(_suspended)
-				return;
-			
-			currentWorkers = _executingConcurrentOperationCount;
-			maxWorkers = _maxConcurrentOperationCount;
+			this.addOperation(operations.get(0), waitUntilFinished);
+			return;
 		}
 		
-		if(!this.isMainQueue())
+		// A bounded queue admits the operations one by one, so that the overflow policy is applied to each of them.
+		if(this.isBounded())
 		{
-			int availableJobs = 0;
-			for(Operation operation : this.getOperations())
+			for(Operation operation : operations)
+				this.addOperation(operation, false);
+			
+			if(waitUntilFinished)
 			{
-				if(operation.isReady() && (++availableJobs >= maxWorkers))
-					break;
+				for(Operation operation : operations)
+					operation.waitUntilFinished();
 			}
-			maxWorkers = availableJobs;
+			return;
 		}
 		
-		if(currentWorkers >= maxWorkers)
-			return;
+		Set<Operation> allOperations = this.getInternalOperations();
+		_outstandingTasksCount.addAndGet(operationsCount);
 		
-		Runnable runnable = new Runnable()
+		// Enqueues the operations and groups the ready ones by priority in a single pass, so that each ready queue is updated only once.
+		List<List<Operation.Slot>> slotsByPriority = new ArrayList<>(Collections.<List<Operation.Slot>>nCopies(Operation.QueuePriority.SORTED_VALUES_ASC.length, null));
+		for(Operation operation : operations)
 		{
-			@Override public void run()
+			// Each operation is tracked right before being enqueued; the duplicates and the operations already pending in this queue keep their entry if they're rejected.
+			boolean tracked = allOperations.add(operation);
+			if(!this.enqueueOperation(operation, null))
 			{
-				OperationQueue thisQueue = OperationQueue.this;
-				
-				while(thisQueue.executeNextOperation())
-				{
-					synchronized(thisQueue)
-					{
-						if(_suspended || (_executingConcurrentOperationCount > _maxConcurrentOperationCount))
-							break;
-					}
-				}
-				
-				synchronized(thisQueue)
-				{
-					_executingConcurrentOperationCount--;
-				}
+				if(tracked)
+					allOperations.remove(operation);
+				this.tasksAreFinished(1);
+				_metrics.operationIsRejected();
+				continue;
 			}
-		};
-		
-		synchronized(this)
-		{
-			for(int i = currentWorkers; i < maxWorkers; i++)
+			_metrics.operationIsEnqueued();
+			this.boostDependenciesIfNeeded(operation);
+			
+			Object coalescingKey = operation.getEnqueuedCoalescingKey();
+			if((coalescingKey != null) && this.coalesceOperation(operation, coalescingKey))
+				continue;
+			
+			Operation.Slot slot = operation.schedule();
+			if(slot == null)
+				continue;
+			
+			if(this.isDeferredUntilIdle(slot))
+			{
+				this.operationIsReady(slot);
+				continue;
+			}
+			
+			int index = slot.getQueuePriority().ordinal();
+			List<Operation.Slot> slots = slotsByPriority.get(index);
+			if(slots == null)
 			{
-				_executingConcurrentOperationCount++;
-				new Thread(runnable).start();
+				slots = new ArrayList<>(operationsCount);
+				slotsByPriority.set(index, slots);
 			}
+			slots.add(slot);
+		}
+		
+		boolean needsStartWorkers = false;
+		Map<Operation.QueuePriority, ReadyQueue> readyQueues = this.getReadyQueues();
+		for(Operation.QueuePriority queuePriority : Operation.QueuePriority.SORTED_VALUES_DESC)
+		{
+			List<Operation.Slot> slots = slotsByPriority.get(queuePriority.ordinal());
+			if(slots == null)
+				continue;
+			
+			readyQueues.get(queuePriority).addAll(slots);
+			_metrics.operationIsReady(queuePriority, slots.size());
+			needsStartWorkers = true;
+		}
+		
+		if(needsStartWorkers)
+			this.setNeedsStartWorkers();
+		
+		if(waitUntilFinished)
+		{
+			for(Operation operation : operations)
+				operation.waitUntilFinished();
 		}
 	}
 	
-	// endregion
-	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Execution management
+	public void addOperationGraph(@NonNull List<Operation> operations)
+	{
+		this.addOperationGraph(operations, false);
+	}
 	
-	private boolean executeNextOperation()
+	public void addOperationGraph(@NonNull List<Operation> operations, boolean waitUntilFinished)
 	{
-		Operation operation = null;
+		int operationsCount = operations.size();
+		Map<Operation, Integer> indexes = new HashMap<>(operationsCount * 2);
+		for(int i = 0; i < operationsCount; i++)
+			indexes.put(operations.get(i), i);
 		
-		Map<Operation.QueuePriority, List<Operation>> queues = this.getQueues();
-		for(Operation.QueuePriority queuePriority : Operation.QueuePriority.SORTED_VALUES_DESC)
+		// Only the dependencies inside the graph are considered: the others are resolved as usual, but don't contribute to the paths.
+		List<List<Integer>> dependents = new ArrayList<>(Collections.<List<Integer>>nCopies(operationsCount, null));
+		int[] pendingDependenciesCounts = new int[operationsCount];
+		for(int i = 0; i < operationsCount; i++)
 		{
-			List<Operation> queue = queues.get(queuePriority);
-			if(queue == null)
-				continue;
-			
-			synchronized(queue)
+			for(Operation dependency : operations.get(i).getDependencies())
 			{
-				for(int i = 0; i < queue.size(); i++)
+				Integer index = indexes.get(dependency);
+				if(index == null)
+					continue;
+				
+				List<Integer> list = dependents.get(index);
+				if(list == null)
 				{
-					Operation temp = queue.get(i);
-					if(temp.isReady())
-					{
-						operation = temp;
-						break;
-					}
+					list = new ArrayList<>(2);
+					dependents.set(index, list);
 				}
+				list.add(i);
+				pendingDependenciesCounts[i]++;
 			}
-			
-			if(operation != null)
-				break;
 		}
 		
-		if(operation == null)
-			return false;
+		// Kahn's algorithm: if some operations can't be sorted, they belong to a cycle and would never become ready.
+		int[] sortedIndexes = new int[operationsCount];
+		int sortedCount = 0;
+		for(int i = 0; i < operationsCount; i++)
+		{
+			if(pendingDependenciesCounts[i] == 0)
+				sortedIndexes[sortedCount++] = i;
+		}
+		for(int i = 0; i < sortedCount; i++)
+		{
+			List<Integer> list = dependents.get(sortedIndexes[i]);
+			if(list == null)
+				continue;
+			
+			for(int dependent : list)
+			{
+				if(--pendingDependenciesCounts[dependent] == 0)
+					sortedIndexes[sortedCount++] = dependent;
+			}
+		}
+		if(sortedCount < operationsCount)
+			throw new RuntimeException("The operation graph contains a dependency cycle.");
 		
-		if(this.isMainQueue())
+		// The critical path length of an operation is the number of operations on the longest path from it to the end of the graph.
+		long[] criticalPathLengths = new long[operationsCount];
+		for(int i = operationsCount - 1; i >= 0; i--)
 		{
-			final Operation finalOperation = operation;
-			this.getMainHandler().post(new Runnable()
+			int index = sortedIndexes[i];
+			long criticalPathLength = 0;
+			List<Integer> list = dependents.get(index);
+			if(list != null)
 			{
-				@Override public void run()
-				{
-					finalOperation.start();
-				}
-			});
+				for(int dependent : list)
+					criticalPathLength = Math.max(criticalPathLength, criticalPathLengths[dependent]);
+			}
+			criticalPathLengths[index] = criticalPathLength + 1;
 		}
-		else
-			operation.start();
 		
-		operation.waitUntilFinished();
+		for(int i = 0; i < operationsCount; i++)
+			operations.get(i).setCriticalPathLength(criticalPathLengths[i]);
 		
-		return true;
+		this.addOperations(operations, waitUntilFinished);
 	}
 	
-	// endregion
-	////////////////////////////////////////////////////////////////////////////////////////////////////
-	// region Operations management
-	
-	public void addOperation(@NonNull Blocks.Block executionBlock)
+	public void cancelAllOperations()
 	{
-		this.addOperation(new BlockOperation(executionBlock), false);
+		Operation.cancelOperations(this.getOperations(), false);
 	}
 	
-	public void addOperation(@NonNull Blocks.Block executionBlock, boolean waitUntilFinished)
+	void operationIsFinished(@NonNull Operation operation, boolean cancelled, boolean dispatched, long executionTime)
 	{
-		this.addOperation(new BlockOperation(executionBlock), waitUntilFinished);
+		this.getInternalOperations().remove(operation);
+		this.serialLaneOperationIsDone(operation, false);
+		this.operationIsNotPending(operation);
+		this.releaseCapacity(operation);
+		_metrics.operationIsFinished(cancelled, dispatched, executionTime);
+		this.tasksAreFinished(1);
+		
+		if(!dispatched)
+			return;
+		
+		synchronized(this)
+		{
+			_executingOperationsCount--;
+		}
+		
+		this.adaptConcurrency();
+		this.setNeedsStartWorkers();
+		
+		// An idle pass that found the execution slot taken has left the idle operations behind: they get another chance now.
+		if(!_idleReadyQueue.isEmpty())
+			this.scheduleIdleHandler();
 	}
 	
-	public void addOperation(@NonNull Operation operation)
+	void operationIsReleased(@NonNull Operation.Slot slot)
 	{
-		this.addOperation(operation, false);
+		_metrics.operationIsDequeued(slot.getQueuePriority());
 	}
 	
-	public void addOperation(@NonNull Operation operation, boolean waitUntilFinished)
+	private boolean isDeferredUntilIdle(@NonNull Operation.Slot slot)
 	{
-		List<Operation> operations = new ArrayList<>();
-		operations.add(operation);
-		this.addOperations(operations, waitUntilFinished);
+		return (slot.isDeferredUntilIdle() && this.isMainQueue());
 	}
 	
-	public void addOperations(@NonNull List<Operation> operations)
+	void operationIsReady(@NonNull Operation.Slot slot)
 	{
-		this.addOperations(operations, false);
+		if(this.isDeferredUntilIdle(slot))
+		{
+			_idleReadyQueue.add(slot);
+			_metrics.operationIsReady(slot.getQueuePriority(), 1);
+			this.scheduleIdleHandler();
+			return;
+		}
+		
+		this.getReadyQueues().get(slot.getQueuePriority()).add(slot);
+		_metrics.operationIsReady(slot.getQueuePriority(), 1);
+		this.setNeedsStartWorkers();
 	}
 	
-	public void addOperations(@NonNull List<Operation> operations, boolean waitUntilFinished)
+	private void tasksAreFinished(int count)
 	{
-		if(operations.size() == 0)
+		// The lock is taken only when the queue becomes quiescent, to wake up the waiting threads.
+		if(_outstandingTasksCount.addAndGet(-count) != 0)
 			return;
 		
-		operations = new ArrayList<>(operations);
-		
-		List<Operation> invalidOperations = null;
-		for(Operation operation : operations)
-		{
-			if(operation.isExecuting() || operation.isFinished())
-			{
-				if(invalidOperations == null)
-					invalidOperations = new ArrayList<>(operations.size());
-				invalidOperations.add(operation);
-			}
-		}
-		if(invalidOperations != null)
+		synchronized(_quiescenceLock)
 		{
-			operations.removeAll(invalidOperations);
-			if(operations.size() == 0)
-				return;
+			_quiescenceLock.notifyAll();
 		}
+	}
+	
+	public void waitUntilAllOperationsAreFinished()
+	{
+		if(_outstandingTasksCount.get() == 0)
+			return;
 		
-		Map<Operation.QueuePriority, List<Operation>> operationsByPriority = new HashMap<>();
-		for(Operation operation : operations)
+		// Keeps waiting if interrupted, then restores the interrupted status of the thread.
+		boolean interrupted = false;
+		synchronized(_quiescenceLock)
 		{
-			Operation.QueuePriority queuePriority = operation.getQueuePriority();
-			List<Operation> queue = operationsByPriority.get(operation.getQueuePriority());
-			if(queue == null)
+			while(_outstandingTasksCount.get() > 0)
 			{
-				queue = new ArrayList<>(1);
-				operationsByPriority.put(queuePriority, queue);
+				try
+				{
+					_quiescenceLock.wait();
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
 			}
-			queue.add(operation);
 		}
 		
-		Map<Operation.QueuePriority, List<Operation>> queues = this.getQueues();
-		for(Operation.QueuePriority queuePriority : operationsByPriority.keySet())
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	public boolean waitUntilAllOperationsAreFinished(long timeout) throws InterruptedException
+	{
+		if(_outstandingTasksCount.get() == 0)
+			return true;
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		synchronized(_quiescenceLock)
 		{
-			List<Operation> newOperations = operationsByPriority.get(queuePriority);
-			List<Operation> queue = queues.get(queuePriority);
-			synchronized(queue)
+			while(_outstandingTasksCount.get() > 0)
 			{
-				queue.addAll(newOperations);
+				long remainingTime = deadline - System.nanoTime();
+				if(remainingTime <= 0)
+					return false;
+				
+				TimeUnit.NANOSECONDS.timedWait(_quiescenceLock, remainingTime);
 			}
 		}
+		return true;
+	}
+	
+	public void waitUntilAllOperationsAreFinishedInterruptibly() throws InterruptedException
+	{
+		if(_outstandingTasksCount.get() == 0)
+			return;
 		
-		for(Operation operation : operations)
-			operation.addObserver(this);
-		
-		this.setNeedsStartWorkers();
-		
-		if(waitUntilFinished)
+		synchronized(_quiescenceLock)
 		{
-			for(Operation operation : operations)
-				operation.waitUntilFinished();
+			while(_outstandingTasksCount.get() > 0)
+				_quiescenceLock.wait();
 		}
 	}
 	
-	public void cancelAllOperations()
+	private boolean enqueueOperation(@NonNull Operation operation, Operation.QueuePriority reservedQueuePriority)
 	{
-		Map<Operation.QueuePriority, List<Operation>> queues = this.getQueues();
-		for(List<Operation> queue : queues.values())
+		Object serialKey = operation.getSerialKey();
+		if(serialKey == null)
+			return operation.enqueue(this, reservedQueuePriority, null, false);
+		
+		// The lane is updated together with the operation, so that the operation can't be scheduled out of turn.
+		boolean retVal;
+		Operation.Slot slot = null;
+		Map<Object, SerialLane> serialLanes = _serialLanes;
+		synchronized(serialLanes)
 		{
-			synchronized(queue)
+			SerialLane serialLane = serialLanes.get(serialKey);
+			if(serialLane == null)
+			{
+				retVal = operation.enqueue(this, reservedQueuePriority, serialKey, false);
+				if(retVal)
+					serialLanes.put(serialKey, new SerialLane(operation));
+			}
+			else if(operation.hasDependents() && serialLane._activeOperation.dependsOn(operation) && serialLane._activeOperation.park())
+			{
+				// The active operation is waiting for this one: it gives up its turn, otherwise the lane would wait for itself.
+				Operation activeOperation = serialLane._activeOperation;
+				retVal = operation.enqueue(this, reservedQueuePriority, serialKey, false);
+				if(retVal)
+				{
+					serialLane._activeOperation = operation;
+					serialLane._pendingOperations.addFirst(activeOperation);
+				}
+				else
+					slot = activeOperation.unpark();
+			}
+			else
 			{
-				for(Operation operation : queue)
+				retVal = operation.enqueue(this, reservedQueuePriority, serialKey, true);
+				if(retVal)
 				{
-					if(!operation.isFinished())
-						operation.cancel();
+					// An operation waited for by a pending operation of the lane goes before it; the others go to the end of the lane.
+					int index = serialLane._pendingOperations.size();
+					if(operation.hasDependents())
+					{
+						int pendingIndex = 0;
+						for(Operation pendingOperation : serialLane._pendingOperations)
+						{
+							if(pendingOperation.dependsOn(operation))
+							{
+								index = pendingIndex;
+								break;
+							}
+							pendingIndex++;
+						}
+					}
+					serialLane._pendingOperations.add(index, operation);
 				}
 			}
 		}
+		
+		if(slot != null)
+			this.operationIsReady(slot);
+		
+		return retVal;
 	}
 	
-	public void waitUntilAllOperationsAreFinished()
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Serial lanes management
+	
+	private void serialLaneOperationIsDone(@NonNull Operation operation, boolean withdrawn)
 	{
-		List<Operation> operations = this.getOperations();
-		for(Operation operation : operations)
-			operation.waitUntilFinished();
+		// Called when an operation finishes or is withdrawn: if it was the active operation of its lane, the next one is unparked.
+		Object serialKey = operation.getEnqueuedSerialKey();
+		if(serialKey == null)
+			return;
+		
+		Operation.Slot slot = null;
+		Map<Object, SerialLane> serialLanes = _serialLanes;
+		synchronized(serialLanes)
+		{
+			SerialLane serialLane = serialLanes.get(serialKey);
+			if(serialLane == null)
+				return;
+			
+			if(serialLane._activeOperation != operation)
+			{
+				// Finished operations are skipped when their turn comes, but withdrawn ones are not finished yet.
+				if(withdrawn)
+					serialLane._pendingOperations.remove(operation);
+				return;
+			}
+			
+			Operation nextOperation;
+			do
+			{
+				nextOperation = serialLane._pendingOperations.pollFirst();
+			}
+			while((nextOperation != null) && nextOperation.isFinished());
+			
+			// An empty lane is discarded, so that the keys don't pile up.
+			if(nextOperation == null)
+			{
+				serialLanes.remove(serialKey);
+				return;
+			}
+			
+			serialLane._activeOperation = nextOperation;
+			slot = nextOperation.unpark();
+		}
+		
+		if(slot != null)
+			this.operationIsReady(slot);
 	}
 	
 	// endregion
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// region Interfaces (Operation.Observer)
 	
-	@Override public void operationIsCancelled(@NonNull Operation sender)
+	// The queue is no longer registered as an observer of its operations: it's notified directly by them. These methods are kept for compatibility only.
+	
+	@Deprecated @Override public void operationIsCancelled(@NonNull Operation sender)
 	{
 		// Nothing to do.
 	}
 	
-	@Override public void operationIsExecuting(@NonNull Operation sender)
+	@Deprecated @Override public void operationIsExecuting(@NonNull Operation sender)
 	{
 		// Nothing to do.
 	}
 	
-	@Override public void operationIsFinished(@NonNull Operation sender)
+	@Deprecated @Override public void operationIsFinished(@NonNull Operation sender)
 	{
-		sender.removeObserver(this);
-		
-		Map<Operation.QueuePriority, List<Operation>> queues = this.getQueues();
-		for(List<Operation> queue : queues.values())
-		{
-			synchronized(queue)
-			{
-				queue.remove(sender);
-			}
-		}
+		// Nothing to do.
 	}
 	
 	// endregion
@@ -0,0 +1,458 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import com.jackfelle.jfkit.data.Blocks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+public final class OperationQueueMetrics
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	public static final int HISTOGRAM_BUCKETS_COUNT = 32;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Classes)
+	
+	// The times of the histograms are in microseconds; the time of the snapshots is in nanoseconds, as returned by 'System.nanoTime()'.
+	public static final class Histogram
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private final @NonNull long[] _counts;
+		private final long _totalCount;
+		private final long _totalTime;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties accessors - Data
+		
+		public long getCount(int bucket)
+		{
+			return _counts[bucket];
+		}
+		
+		public long getMeanTimeMicros()
+		{
+			return ((_totalCount == 0) ? 0 : (_totalTime / _totalCount));
+		}
+		
+		public long getTotalCount()
+		{
+			return _totalCount;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		private Histogram(@NonNull long[] counts, long totalTime)
+		{
+			long totalCount = 0;
+			for(long count : counts)
+				totalCount += count;
+			
+			// Data
+			_counts = counts;
+			_totalCount = totalCount;
+			_totalTime = totalTime;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Data management
+		
+		public static long getBucketUpperBoundMicros(int bucket)
+		{
+			return ((bucket >= (HISTOGRAM_BUCKETS_COUNT - 1)) ? Long.MAX_VALUE : (1L << (bucket + 1)));
+		}
+		
+		public long getPercentileMicros(double percentile)
+		{
+			if(_totalCount == 0)
+				return 0;
+			
+			long threshold = (long)Math.ceil(_totalCount * Math.min(Math.max(percentile, 0), 100) / 100);
+			long count = 0;
+			for(int i = 0; i < HISTOGRAM_BUCKETS_COUNT; i++)
+			{
+				count += _counts[i];
+				if(count >= Math.max(threshold, 1))
+					return Histogram.getBucketUpperBoundMicros(i);
+			}
+			return Long.MAX_VALUE;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	public static final class Snapshot
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private final long _cancelledCount;
+		private final @NonNull long[] _depths;
+		private final long _enqueuedCount;
+		private final @NonNull Histogram _executionTimeHistogram;
+		private final int _executingCount;
+		private final long _finishedCount;
+		private final int _pendingCount;
+		private final long _rejectedCount;
+		private final long _startedCount;
+		private final long _time;
+		private final @NonNull Histogram _waitTimeHistogram;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties accessors - Data
+		
+		public long getCancelledCount()
+		{
+			return _cancelledCount;
+		}
+		
+		public long getDepth(@NonNull Operation.QueuePriority queuePriority)
+		{
+			return _depths[queuePriority.ordinal()];
+		}
+		
+		public long getEnqueuedCount()
+		{
+			return _enqueuedCount;
+		}
+		
+		public int getExecutingCount()
+		{
+			return _executingCount;
+		}
+		
+		public @NonNull Histogram getExecutionTimeHistogram()
+		{
+			return _executionTimeHistogram;
+		}
+		
+		public long getFinishedCount()
+		{
+			return _finishedCount;
+		}
+		
+		public int getPendingCount()
+		{
+			return _pendingCount;
+		}
+		
+		public long getRejectedCount()
+		{
+			return _rejectedCount;
+		}
+		
+		public long getStartedCount()
+		{
+			return _startedCount;
+		}
+		
+		public long getTimeNanos()
+		{
+			return _time;
+		}
+		
+		public @NonNull Histogram getWaitTimeHistogram()
+		{
+			return _waitTimeHistogram;
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		private Snapshot(@NonNull OperationQueueMetrics metrics, int pendingCount, int executingCount)
+		{
+			long[] depths = new long[metrics._depths.length];
+			for(int i = 0; i < depths.length; i++)
+				depths[i] = Math.max(0, metrics._depths[i].get());
+			
+			// Data
+			_cancelledCount = metrics._cancelledCount.get();
+			_depths = depths;
+			_enqueuedCount = metrics._enqueuedCount.get();
+			_executingCount = executingCount;
+			_executionTimeHistogram = metrics._executionTimes.getHistogram();
+			_finishedCount = metrics._finishedCount.get();
+			_pendingCount = pendingCount;
+			_rejectedCount = metrics._rejectedCount.get();
+			_startedCount = metrics._startedCount.get();
+			_time = System.nanoTime();
+			_waitTimeHistogram = metrics._waitTimes.getHistogram();
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Data management
+		
+		public double getThroughput(@NonNull Snapshot previousSnapshot)
+		{
+			long elapsedTime = _time - previousSnapshot._time;
+			if(elapsedTime <= 0)
+				return 0;
+			
+			return ((_finishedCount - previousSnapshot._finishedCount) * (double)TimeUnit.SECONDS.toNanos(1) / elapsedTime);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	static final class Counter
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Constants
+		
+		// Each stripe uses its own cache line (8 longs) to avoid false sharing.
+		private static final int STRIPE_PADDING = 8;
+		private static final int STRIPES_COUNT = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 2;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private final @NonNull AtomicLongArray _stripes;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		Counter()
+		{
+			// Data
+			_stripes = new AtomicLongArray(STRIPES_COUNT * STRIPE_PADDING);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Data management
+		
+		void add(long value)
+		{
+			int stripe = (int)(Thread.currentThread().getId() & (STRIPES_COUNT - 1));
+			_stripes.getAndAdd(stripe * STRIPE_PADDING, value);
+		}
+		
+		long get()
+		{
+			long retVal = 0;
+			for(int i = 0; i < STRIPES_COUNT; i++)
+				retVal += _stripes.get(i * STRIPE_PADDING);
+			return retVal;
+		}
+		
+		void increment()
+		{
+			this.add(1);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	static final class HistogramRecorder
+	{
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private final @NonNull AtomicLongArray _counts;
+		private final @NonNull Counter _totalTime;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Properties accessors - Data
+		
+		@NonNull Histogram getHistogram()
+		{
+			long[] counts = new long[HISTOGRAM_BUCKETS_COUNT];
+			for(int i = 0; i < HISTOGRAM_BUCKETS_COUNT; i++)
+				counts[i] = _counts.get(i);
+			return new Histogram(counts, _totalTime.get());
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		HistogramRecorder()
+		{
+			// Data
+			_counts = new AtomicLongArray(HISTOGRAM_BUCKETS_COUNT);
+			_totalTime = new Counter();
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Data management
+		
+		void record(long time)
+		{
+			// Bucket 'n' holds the times (in microseconds) lower than 2^(n+1).
+			long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(time));
+			int bucket = Math.min(HISTOGRAM_BUCKETS_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros | 1));
+			_counts.incrementAndGet(bucket);
+			_totalTime.add(micros);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Data
+	
+	private final @NonNull Counter _cancelledCount;
+	private final @NonNull Counter[] _depths;
+	private final @NonNull Counter _enqueuedCount;
+	private final @NonNull HistogramRecorder _executionTimes;
+	private final @NonNull Counter _finishedCount;
+	private final @NonNull OperationQueue _queue;
+	private final @NonNull Counter _rejectedCount;
+	private final @NonNull Counter _startedCount;
+	private final @NonNull HistogramRecorder _waitTimes;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	public @NonNull Snapshot getSnapshot()
+	{
+		OperationQueue queue = _queue;
+		return new Snapshot(this, queue.getOperationsCount(), queue.getExecutingConcurrentOperationCount());
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Memory management
+	
+	OperationQueueMetrics(@NonNull OperationQueue queue)
+	{
+		Counter[] depths = new Counter[Operation.QueuePriority.SORTED_VALUES_ASC.length];
+		for(int i = 0; i < depths.length; i++)
+			depths[i] = new Counter();
+		
+		// Data
+		_cancelledCount = new Counter();
+		_depths = depths;
+		_enqueuedCount = new Counter();
+		_executionTimes = new HistogramRecorder();
+		_finishedCount = new Counter();
+		_queue = queue;
+		_rejectedCount = new Counter();
+		_startedCount = new Counter();
+		_waitTimes = new HistogramRecorder();
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Data management
+	
+	void blockIsEnqueued()
+	{
+		_enqueuedCount.increment();
+		_depths[Operation.QueuePriority.NORMAL.ordinal()].increment();
+	}
+	
+	void blockIsFinished(long executionTime)
+	{
+		_finishedCount.increment();
+		_executionTimes.record(executionTime);
+	}
+	
+	void blockIsStarted(@NonNull Operation.QueuePriority queuePriority)
+	{
+		_depths[queuePriority.ordinal()].add(-1);
+		_startedCount.increment();
+	}
+	
+	void operationIsDequeued(@NonNull Operation.QueuePriority queuePriority)
+	{
+		_depths[queuePriority.ordinal()].add(-1);
+	}
+	
+	void operationIsEnqueued()
+	{
+		_enqueuedCount.increment();
+	}
+	
+	void operationIsFinished(boolean cancelled, boolean dispatched, long executionTime)
+	{
+		_finishedCount.increment();
+		
+		if(cancelled)
+			_cancelledCount.increment();
+		
+		if(dispatched)
+			_executionTimes.record(executionTime);
+	}
+	
+	void operationIsReady(@NonNull Operation.QueuePriority queuePriority, int count)
+	{
+		_depths[queuePriority.ordinal()].add(count);
+	}
+	
+	void operationIsRejected()
+	{
+		_rejectedCount.increment();
+	}
+	
+	void operationIsStarted(long waitTime)
+	{
+		_startedCount.increment();
+		_waitTimes.record(waitTime);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Reporting management
+	
+	public @NonNull OperationQueue.ScheduledTask startReporting(long period, @NonNull final Blocks.BlockWithObject<Snapshot> reporter)
+	{
+		return OperationQueue.getBackgroundQueue().addPeriodicOperation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{
+				reporter.execute(OperationQueueMetrics.this.getSnapshot());
+			}
+		}, period, period);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
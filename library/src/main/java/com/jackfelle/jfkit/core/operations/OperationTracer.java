@@ -0,0 +1,478 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+
+public final class OperationTracer
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	
+	// Event types
+	private static final int EVENT_BLOCK_EXECUTED = 0;
+	private static final int EVENT_DEPENDENCY_ADDED = 1;
+	private static final int EVENT_OPERATION_ENQUEUED = 2;
+	private static final int EVENT_OPERATION_FINISHED = 3;
+	private static final int EVENT_OPERATION_STARTED = 4;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Classes)
+	
+	// Written only by its own thread: the writer publishes each record by advancing the count, so the dump never takes a lock.
+	private static final class Buffer
+	{
+		////////////////////////////////////////////////////////////////////////////////
+		// region Properties - Data
+		
+		private volatile long _clearedCount;
+		private final @NonNull AtomicLong _count;
+		private final @NonNull int[] _flags;
+		private final @NonNull long[] _ids;
+		private final int _mask;
+		private final @NonNull Object[] _names;
+		private final @NonNull int[] _queuePriorities;
+		private final @NonNull String[] _queueNames;
+		private final @NonNull WeakReference<Thread> _thread;
+		private final int _threadID;
+		private final @NonNull String _threadName;
+		private final @NonNull long[] _times;
+		private final @NonNull int[] _types;
+		private final @NonNull long[] _values;
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Memory management
+		
+		private Buffer(int size)
+		{
+			// Data
+			_clearedCount = 0;
+			_count = new AtomicLong(0);
+			_flags = new int[size];
+			_ids = new long[size];
+			_mask = size - 1;
+			_names = new Object[size];
+			_queuePriorities = new int[size];
+			_queueNames = new String[size];
+			_thread = new WeakReference<>(Thread.currentThread());
+			_threadID = Process.myTid();
+			_threadName = Thread.currentThread().getName();
+			_times = new long[size];
+			_types = new int[size];
+			_values = new long[size];
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////
+		// region Methods - Data management
+		
+		private boolean isThreadAlive()
+		{
+			Thread thread = _thread.get();
+			return ((thread != null) && thread.isAlive());
+		}
+		
+		private void record(int type, long time, long id, long value, Object name, String queueName, int queuePriority, int flags)
+		{
+			long count = _count.get();
+			int index = (int)(count & _mask);
+			_flags[index] = flags;
+			_ids[index] = id;
+			_names[index] = name;
+			_queueNames[index] = queueName;
+			_queuePriorities[index] = queuePriority;
+			_times[index] = time;
+			_types[index] = type;
+			_values[index] = value;
+			_count.lazySet(count + 1);
+		}
+		
+		// endregion
+		////////////////////////////////////////////////////////////////////////////////
+	}
+	
+	private static final class Event
+	{
+		private final @NonNull Buffer _buffer;
+		private final int _flags;
+		private final long _id;
+		private final Object _name;
+		private final int _queuePriority;
+		private final String _queueName;
+		private final long _time;
+		private final int _type;
+		private final long _value;
+		
+		private Event(@NonNull Buffer buffer, int index)
+		{
+			_buffer = buffer;
+			_flags = buffer._flags[index];
+			_id = buffer._ids[index];
+			_name = buffer._names[index];
+			_queuePriority = buffer._queuePriorities[index];
+			_queueName = buffer._queueNames[index];
+			_time = buffer._times[index];
+			_type = buffer._types[index];
+			_value = buffer._values[index];
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Data
+	
+	private static final @NonNull ThreadLocal<Buffer> _buffer = new ThreadLocal<>();
+	private static volatile int _bufferSize = DEFAULT_BUFFER_SIZE;
+	private static final @NonNull List<Buffer> _buffers = new CopyOnWriteArrayList<>();
+	private static volatile boolean _enabled = false;
+	private static final @NonNull AtomicLong _nextTraceID = new AtomicLong(1);
+	private static final long _startTime = System.nanoTime();
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	private static @NonNull Buffer getBuffer()
+	{
+		Buffer retObj = _buffer.get();
+		if(retObj == null)
+		{
+			// The buffers of the threads that are gone are released before a new one is registered, so that short-lived threads don't pile up.
+			for(Buffer buffer : _buffers)
+			{
+				if(!buffer.isThreadAlive())
+					_buffers.remove(buffer);
+			}
+			
+			retObj = new Buffer(_bufferSize);
+			_buffer.set(retObj);
+			_buffers.add(retObj);
+		}
+		return retObj;
+	}
+	
+	public static int getBufferSize()
+	{
+		return _bufferSize;
+	}
+	
+	public static void setBufferSize(int bufferSize)
+	{
+		// Applies to the threads that record their first event from now on; the size is rounded up to a power of two.
+		_bufferSize = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return _enabled;
+	}
+	
+	public static void setEnabled(boolean enabled)
+	{
+		_enabled = enabled;
+	}
+	
+	static long newTraceID()
+	{
+		return _nextTraceID.getAndIncrement();
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Memory management
+	
+	private OperationTracer()
+	{
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Recording
+	
+	static void blockIsExecuted(@NonNull OperationQueue queue, long startTime, long executionTime)
+	{
+		OperationTracer.getBuffer().record(EVENT_BLOCK_EXECUTED, startTime, 0, executionTime, null, OperationTracer.getQueueName(queue), Operation.QueuePriority.NORMAL.ordinal(), 0);
+	}
+	
+	public static void clear()
+	{
+		// The records are discarded by moving the starting point of the dump, so that each buffer keeps a single writer; the buffers of the threads that are gone are released.
+		for(Buffer buffer : _buffers)
+		{
+			if(!buffer.isThreadAlive())
+				_buffers.remove(buffer);
+			else
+				buffer._clearedCount = buffer._count.get();
+		}
+	}
+	
+	private static @NonNull String getQueueName(@NonNull OperationQueue queue)
+	{
+		String retVal = queue.getName();
+		return ((retVal == null) ? (OperationQueue.class.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(queue))) : retVal);
+	}
+	
+	static void operationIsEnqueued(@NonNull Operation operation, @NonNull OperationQueue queue)
+	{
+		Buffer buffer = OperationTracer.getBuffer();
+		long id = operation.getTraceID();
+		String name = operation.getName();
+		buffer.record(EVENT_OPERATION_ENQUEUED, System.nanoTime(), id, 0, ((name == null) ? operation.getClass() : name), OperationTracer.getQueueName(queue), operation.getQueuePriority().ordinal(), 0);
+		
+		for(Operation dependency : operation.getDependencies())
+			buffer.record(EVENT_DEPENDENCY_ADDED, System.nanoTime(), id, dependency.getTraceID(), null, null, 0, 0);
+	}
+	
+	static void operationIsFinished(@NonNull Operation operation, boolean cancelled)
+	{
+		String name = operation.getName();
+		OperationTracer.getBuffer().record(EVENT_OPERATION_FINISHED, System.nanoTime(), operation.getTraceID(), 0, ((name == null) ? operation.getClass() : name), null, operation.getQueuePriority().ordinal(), (cancelled ? 1 : 0));
+	}
+	
+	static void operationIsStarted(@NonNull Operation operation)
+	{
+		String name = operation.getName();
+		OperationTracer.getBuffer().record(EVENT_OPERATION_STARTED, System.nanoTime(), operation.getTraceID(), 0, ((name == null) ? operation.getClass() : name), null, operation.getQueuePriority().ordinal(), 0);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Export
+	
+	private static void appendEvent(@NonNull StringBuilder builder, @NonNull String phase, @NonNull String name, String category, long time, long duration, int threadID, long flowID, String args)
+	{
+		// Timestamps are in microseconds, relative to the loading of the tracer.
+		builder.append(builder.length() > 0 ? ",\n" : "\n");
+		builder.append("{\"ph\":\"").append(phase).append("\",\"name\":");
+		OperationTracer.appendString(builder, name);
+		if(category != null)
+		{
+			builder.append(",\"cat\":");
+			OperationTracer.appendString(builder, category);
+		}
+		builder.append(",\"pid\":").append(Process.myPid()).append(",\"tid\":").append(threadID);
+		builder.append(",\"ts\":").append(String.format(Locale.US, "%.3f", (time - _startTime) / 1000.0));
+		if(duration >= 0)
+			builder.append(",\"dur\":").append(String.format(Locale.US, "%.3f", duration / 1000.0));
+		if(flowID > 0)
+			builder.append(",\"id\":").append(flowID);
+		if(phase.equals("f"))
+			builder.append(",\"bp\":\"e\"");
+		if(phase.equals("i"))
+			builder.append(",\"s\":\"t\"");
+		if(args != null)
+			builder.append(",\"args\":").append(args);
+		builder.append("}");
+	}
+	
+	private static void appendString(@NonNull StringBuilder builder, @NonNull String string)
+	{
+		builder.append('"');
+		for(int i = 0; i < string.length(); i++)
+		{
+			char character = string.charAt(i);
+			switch(character)
+			{
+				case '"':
+					builder.append("\\\"");
+					break;
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				case '\t':
+					builder.append("\\t");
+					break;
+				default:
+				{
+					if(character < 0x20)
+						builder.append(String.format(Locale.US, "\\u%04x", (int)character));
+					else
+						builder.append(character);
+					break;
+				}
+			}
+		}
+		builder.append('"');
+	}
+	
+	private static @NonNull String getEventName(@NonNull Event event)
+	{
+		if(event._name instanceof Class)
+			return ((Class<?>)event._name).getSimpleName();
+		return ((event._name == null) ? "Block" : (String)event._name);
+	}
+	
+	private static @NonNull String getQueuePriorityName(int queuePriority)
+	{
+		Operation.QueuePriority[] queuePriorities = Operation.QueuePriority.values();
+		return (((queuePriority >= 0) && (queuePriority < queuePriorities.length)) ? queuePriorities[queuePriority].name() : "UNKNOWN");
+	}
+	
+	public static void writeTrace(@NonNull Writer writer) throws IOException
+	{
+		// Collects the records of every thread; the oldest ones may have been overwritten by the ring buffers.
+		Map<Long, Event> enqueuedEvents = new HashMap<>();
+		Map<Long, Event> startedEvents = new HashMap<>();
+		Map<Long, Event> finishedEvents = new HashMap<>();
+		List<Event> dependencyEvents = new ArrayList<>();
+		List<Event> blockEvents = new ArrayList<>();
+		
+		List<Buffer> buffers = new ArrayList<>(_buffers);
+		for(Buffer buffer : buffers)
+		{
+			long count = buffer._count.get();
+			long first = Math.max(buffer._clearedCount, count - (buffer._mask + 1));
+			Event[] events = new Event[(int)(count - first)];
+			for(long i = first; i < count; i++)
+				events[(int)(i - first)] = new Event(buffer, (int)(i & buffer._mask));
+			
+			// Seqlock-style check: the owner thread may have wrapped around while the records were copied, so the slots it may have overwritten in the meantime are discarded.
+			// The next two records may be partially visible before their count is published, so their slots are discarded too.
+			long validFirst = Math.max(first, buffer._count.get() + 1 - buffer._mask);
+			for(long i = validFirst; i < count; i++)
+			{
+				Event event = events[(int)(i - first)];
+				switch(event._type)
+				{
+					case EVENT_BLOCK_EXECUTED:
+						blockEvents.add(event);
+						break;
+					case EVENT_DEPENDENCY_ADDED:
+						dependencyEvents.add(event);
+						break;
+					case EVENT_OPERATION_ENQUEUED:
+						enqueuedEvents.put(event._id, event);
+						break;
+					case EVENT_OPERATION_FINISHED:
+						finishedEvents.put(event._id, event);
+						break;
+					case EVENT_OPERATION_STARTED:
+						startedEvents.put(event._id, event);
+						break;
+				}
+			}
+		}
+		
+		StringBuilder builder = new StringBuilder();
+		for(Buffer buffer : buffers)
+		{
+			StringBuilder args = new StringBuilder("{\"name\":");
+			OperationTracer.appendString(args, buffer._threadName);
+			OperationTracer.appendEvent(builder, "M", "thread_name", null, _startTime, -1, buffer._threadID, 0, args.append("}").toString());
+		}
+		
+		long now = System.nanoTime();
+		long flowID = 1;
+		
+		// Operations: a slice for each execution, with a flow arrow from the enqueue to the start.
+		for(Event startedEvent : startedEvents.values())
+		{
+			Event enqueuedEvent = enqueuedEvents.get(startedEvent._id);
+			Event finishedEvent = finishedEvents.get(startedEvent._id);
+			String queueName = ((enqueuedEvent == null) ? null : enqueuedEvent._queueName);
+			long duration = ((finishedEvent == null) ? (now - startedEvent._time) : (finishedEvent._time - startedEvent._time));
+			
+			StringBuilder args = new StringBuilder("{\"id\":").append(startedEvent._id);
+			args.append(",\"priority\":\"").append(OperationTracer.getQueuePriorityName(startedEvent._queuePriority)).append("\"");
+			if(enqueuedEvent != null)
+				args.append(",\"wait_us\":").append(TimeUnit.NANOSECONDS.toMicros(startedEvent._time - enqueuedEvent._time));
+			if(finishedEvent == null)
+				args.append(",\"unfinished\":true");
+			else if(finishedEvent._flags != 0)
+				args.append(",\"cancelled\":true");
+			args.append("}");
+			
+			String name = OperationTracer.getEventName(startedEvent);
+			OperationTracer.appendEvent(builder, "X", name, queueName, startedEvent._time, duration, startedEvent._buffer._threadID, 0, args.toString());
+			
+			if(enqueuedEvent != null)
+			{
+				OperationTracer.appendEvent(builder, "s", "enqueue", queueName, enqueuedEvent._time, -1, enqueuedEvent._buffer._threadID, flowID, null);
+				OperationTracer.appendEvent(builder, "f", "enqueue", queueName, startedEvent._time, -1, startedEvent._buffer._threadID, flowID, null);
+				flowID++;
+			}
+		}
+		
+		// Operations that never started (e.g. cancelled while waiting) are instants at their finish time.
+		for(Event finishedEvent : finishedEvents.values())
+		{
+			if(startedEvents.containsKey(finishedEvent._id))
+				continue;
+			
+			Event enqueuedEvent = enqueuedEvents.get(finishedEvent._id);
+			String queueName = ((enqueuedEvent == null) ? null : enqueuedEvent._queueName);
+			String args = "{\"id\":" + finishedEvent._id + ",\"priority\":\"" + OperationTracer.getQueuePriorityName(finishedEvent._queuePriority) + "\",\"cancelled\":" + (finishedEvent._flags != 0) + "}";
+			OperationTracer.appendEvent(builder, "i", OperationTracer.getEventName(finishedEvent), queueName, finishedEvent._time, -1, finishedEvent._buffer._threadID, 0, args);
+		}
+		
+		// Dependency edges: a flow arrow from the end of the dependency to the start of the dependent.
+		for(Event dependencyEvent : dependencyEvents)
+		{
+			Event finishedEvent = finishedEvents.get(dependencyEvent._value);
+			Event startedEvent = startedEvents.get(dependencyEvent._id);
+			if((finishedEvent == null) || (startedEvent == null))
+				continue;
+			
+			OperationTracer.appendEvent(builder, "s", "dependency", null, finishedEvent._time, -1, finishedEvent._buffer._threadID, flowID, null);
+			OperationTracer.appendEvent(builder, "f", "dependency", null, startedEvent._time, -1, startedEvent._buffer._threadID, flowID, null);
+			flowID++;
+		}
+		
+		for(Event blockEvent : blockEvents)
+			OperationTracer.appendEvent(builder, "X", OperationTracer.getEventName(blockEvent), blockEvent._queueName, blockEvent._time, blockEvent._value, blockEvent._buffer._threadID, 0, null);
+		
+		writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		writer.write(builder.toString());
+		writer.write("\n]}\n");
+		writer.flush();
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
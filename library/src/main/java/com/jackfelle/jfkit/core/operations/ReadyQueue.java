@@ -0,0 +1,318 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import android.os.SystemClock;
+
+import com.jackfelle.jfkit.data.Blocks;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import androidx.annotation.NonNull;
+
+final class ReadyQueue
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	// The longest critical path first; then FIFO.
+	private static final @NonNull Comparator<Operation.Slot> CRITICAL_PATH_SLOTS_COMPARATOR = new Comparator<Operation.Slot>()
+	{
+		@Override public int compare(Operation.Slot slot1, Operation.Slot slot2)
+		{
+			long criticalPathLength1 = slot1.getCriticalPathLength();
+			long criticalPathLength2 = slot2.getCriticalPathLength();
+			if(criticalPathLength1 != criticalPathLength2)
+				return ((criticalPathLength1 > criticalPathLength2) ? -1 : 1);
+			
+			return ReadyQueue.compareSequences(slot1, slot2);
+		}
+	};
+	
+	// Earliest deadline first; then the longest critical path first; then FIFO.
+	private static final @NonNull Comparator<Operation.Slot> ORDERED_SLOTS_COMPARATOR = new Comparator<Operation.Slot>()
+	{
+		@Override public int compare(Operation.Slot slot1, Operation.Slot slot2)
+		{
+			long deadline1 = slot1.getDeadline();
+			long deadline2 = slot2.getDeadline();
+			if(deadline1 != deadline2)
+				return ((deadline1 < deadline2) ? -1 : 1);
+			
+			return CRITICAL_PATH_SLOTS_COMPARATOR.compare(slot1, slot2);
+		}
+	};
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Execution
+	
+	private final @NonNull PriorityQueue<Operation.Slot> _criticalPathSlots; // Graph nodes without a deadline; each one also has a turn in the FIFO.
+	private long _nextSequence;
+	private final @NonNull PriorityQueue<Operation.Slot> _orderedSlots; // Slots with a deadline.
+	private volatile int _orderedSlotsCount;
+	private final @NonNull Operation.QueuePriority _queuePriority;
+	private volatile TokenBucket _rateLimiter;
+	private final @NonNull Queue<Object> _tasks; // Slots without a deadline and plain blocks, in FIFO order.
+	private volatile long _tasksPollTime; // Plain blocks don't track their ready time, so they age from the last time the FIFO was served.
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Scheduling
+	
+	private volatile long _agingInterval;
+	private long _pass;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Execution
+	
+	boolean isEmpty()
+	{
+		return (_tasks.isEmpty() && (_orderedSlotsCount == 0));
+	}
+	
+	boolean isDispatchable()
+	{
+		if(this.isEmpty())
+			return false;
+		
+		TokenBucket rateLimiter = _rateLimiter;
+		return ((rateLimiter == null) || (rateLimiter.getDelay() == 0));
+	}
+	
+	long getOldestReadyTime()
+	{
+		long retVal = Long.MAX_VALUE;
+		
+		// Plain blocks don't track their ready time, so they don't age.
+		Object task = _tasks.peek();
+		if(task instanceof Operation.Slot)
+			retVal = ((Operation.Slot)task).getReadyTime();
+		
+		if(_orderedSlotsCount > 0)
+		{
+			synchronized(_orderedSlots)
+			{
+				Operation.Slot slot = _orderedSlots.peek();
+				if(slot != null)
+					retVal = Math.min(retVal, slot.getReadyTime());
+			}
+		}
+		
+		return retVal;
+	}
+	
+	@NonNull Operation.QueuePriority getQueuePriority()
+	{
+		return _queuePriority;
+	}
+	
+	TokenBucket getRateLimiter()
+	{
+		return _rateLimiter;
+	}
+	
+	void setRateLimiter(TokenBucket rateLimiter)
+	{
+		_rateLimiter = rateLimiter;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Scheduling
+	
+	long getAgingInterval()
+	{
+		return _agingInterval;
+	}
+	
+	void setAgingInterval(long agingInterval)
+	{
+		_agingInterval = agingInterval;
+	}
+	
+	long getPass()
+	{
+		return _pass;
+	}
+	
+	void setPass(long pass)
+	{
+		_pass = pass;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Memory management
+	
+	ReadyQueue(@NonNull Operation.QueuePriority queuePriority)
+	{
+		// Execution
+		_criticalPathSlots = new PriorityQueue<>(11, CRITICAL_PATH_SLOTS_COMPARATOR);
+		_nextSequence = 0;
+		_orderedSlots = new PriorityQueue<>(11, ORDERED_SLOTS_COMPARATOR);
+		_orderedSlotsCount = 0;
+		_queuePriority = queuePriority;
+		_rateLimiter = null;
+		_tasks = new ConcurrentLinkedQueue<>();
+		_tasksPollTime = SystemClock.uptimeMillis();
+		
+		// Scheduling
+		_agingInterval = OperationQueue.DEFAULT_AGING_INTERVAL;
+		_pass = 0;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Execution management
+	
+	private static int compareSequences(@NonNull Operation.Slot slot1, @NonNull Operation.Slot slot2)
+	{
+		long sequence1 = slot1.getSequence();
+		long sequence2 = slot2.getSequence();
+		return ((sequence1 < sequence2) ? -1 : ((sequence1 == sequence2) ? 0 : 1));
+	}
+	
+	void add(@NonNull Operation.Slot slot)
+	{
+		if(slot.hasDeadline())
+		{
+			synchronized(_orderedSlots)
+			{
+				slot.setSequence(_nextSequence++);
+				_orderedSlots.add(slot);
+				_orderedSlotsCount = _orderedSlots.size();
+			}
+			return;
+		}
+		
+		if(slot.isOnCriticalPath())
+		{
+			// The slot is ranked against the other graph nodes, but its turn comes in FIFO order; it must be in the heap before its turn can be taken.
+			synchronized(_criticalPathSlots)
+			{
+				slot.setSequence(_nextSequence++);
+				_criticalPathSlots.add(slot);
+			}
+		}
+		
+		_tasks.add(slot);
+	}
+	
+	void add(@NonNull Blocks.Block block)
+	{
+		_tasks.add(block);
+	}
+	
+	void addAll(@NonNull List<Operation.Slot> slots)
+	{
+		boolean hasOrderedSlots = false;
+		for(Operation.Slot slot : slots)
+		{
+			if(slot.hasDeadline() || slot.isOnCriticalPath())
+			{
+				hasOrderedSlots = true;
+				break;
+			}
+		}
+		
+		if(!hasOrderedSlots)
+		{
+			_tasks.addAll(slots);
+			return;
+		}
+		
+		for(Operation.Slot slot : slots)
+			this.add(slot);
+	}
+	
+	Object poll()
+	{
+		// Operations with a deadline are executed first, unless the oldest operation of the FIFO has waited past its implicit deadline (its ready time plus the aging interval).
+		if(_orderedSlotsCount > 0)
+		{
+			long now = SystemClock.uptimeMillis();
+			long tasksDeadline = Long.MAX_VALUE;
+			Object task = _tasks.peek();
+			if(task == null)
+				_tasksPollTime = now;
+			else
+				tasksDeadline = ((task instanceof Operation.Slot) ? ((Operation.Slot)task).getReadyTime() : _tasksPollTime) + _agingInterval;
+			
+			synchronized(_orderedSlots)
+			{
+				Operation.Slot retObj = _orderedSlots.peek();
+				if((retObj != null) && ((retObj.getDeadline() <= tasksDeadline) || (now < tasksDeadline)))
+				{
+					_orderedSlots.poll();
+					_orderedSlotsCount = _orderedSlots.size();
+					return retObj;
+				}
+			}
+		}
+		
+		return this.pollTask();
+	}
+	
+	Object pollOldest()
+	{
+		// Operations without a deadline are dropped first, oldest first.
+		Object retObj = this.pollTask();
+		if((retObj != null) || (_orderedSlotsCount == 0))
+			return retObj;
+		
+		synchronized(_orderedSlots)
+		{
+			retObj = _orderedSlots.poll();
+			_orderedSlotsCount = _orderedSlots.size();
+			return retObj;
+		}
+	}
+	
+	private Object pollTask()
+	{
+		// The time is only needed to age plain blocks against operations with a deadline.
+		Object retObj = _tasks.poll();
+		if((retObj != null) && (_orderedSlotsCount > 0))
+			_tasksPollTime = SystemClock.uptimeMillis();
+		
+		if(!(retObj instanceof Operation.Slot) || !((Operation.Slot)retObj).isOnCriticalPath())
+			return retObj;
+		
+		// The turn of a graph node goes to the graph node with the longest critical path.
+		synchronized(_criticalPathSlots)
+		{
+			return _criticalPathSlots.poll();
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
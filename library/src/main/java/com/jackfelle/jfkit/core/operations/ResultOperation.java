@@ -0,0 +1,430 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import com.jackfelle.jfkit.data.Blocks;
+import com.jackfelle.jfkit.data.Error;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+public class ResultOperation <T> extends AsynchronousOperation
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	private static final String TAG = ResultOperation.class.getSimpleName();
+	
+	// Error codes
+	public static final int ERROR_NO_OPERATIONS = 1;
+	public static final int ERROR_TIMED_OUT = 2;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Interfaces)
+	
+	public interface Transformation <T, R>
+	{
+		R execute(T result) throws Exception;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Data
+	
+	private T _result;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Execution
+	
+	private Callable<T> _callable;
+	private List<Blocks.Block> _continuations;
+	private boolean _continuationsExecuted;
+	private final @NonNull Operation.Observer _continuationsObserver; // Held here because the observers are only weakly referenced.
+	private boolean _promise;
+	private boolean _resolved;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	public T getResult()
+	{
+		synchronized(this)
+		{
+			return _result;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - State
+	
+	public boolean isSucceeded()
+	{
+		return (this.isFinished() && !this.isCancelled() && (this.getError() == null));
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Memory management
+	
+	public ResultOperation()
+	{
+		// Data
+		_result = null;
+		
+		// Execution
+		_callable = null;
+		_continuations = null;
+		_continuationsExecuted = false;
+		_continuationsObserver = new Operation.Observer()
+		{
+			@Override public void operationIsCancelled(@NonNull Operation sender)
+			{
+				// Nothing to do.
+			}
+			
+			@Override public void operationIsExecuting(@NonNull Operation sender)
+			{
+				// Nothing to do.
+			}
+			
+			@Override public void operationIsFinished(@NonNull Operation sender)
+			{
+				ResultOperation.this.executeContinuations();
+			}
+		};
+		_promise = false;
+		_resolved = false;
+		
+		// The continuations are executed by observing the operation, so that every way of finishing it is covered without overriding finish().
+		this.addObserver(_continuationsObserver);
+	}
+	
+	public ResultOperation(@NonNull Callable<T> callable)
+	{
+		this();
+		
+		// Execution
+		_callable = callable;
+	}
+	
+	private static @NonNull <T> ResultOperation<T> newPromise()
+	{
+		// Promises are never enqueued: they are started by whoever resolves them, on the resolving thread.
+		ResultOperation<T> retObj = new ResultOperation<>();
+		retObj._promise = true;
+		return retObj;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Execution management
+	
+	private void addContinuation(@NonNull Blocks.Block continuation)
+	{
+		synchronized(this)
+		{
+			if(!_continuationsExecuted)
+			{
+				if(_continuations == null)
+					_continuations = new ArrayList<>(1);
+				_continuations.add(continuation);
+				return;
+			}
+		}
+		
+		continuation.execute();
+	}
+	
+	@Override public void cancel()
+	{
+		if(_promise)
+		{
+			this.resolve(null, null, true);
+			return;
+		}
+		
+		super.cancel();
+	}
+	
+	private void executeContinuations()
+	{
+		List<Blocks.Block> continuations;
+		synchronized(this)
+		{
+			if(_continuationsExecuted)
+				return;
+			
+			continuations = _continuations;
+			_continuations = null;
+			_continuationsExecuted = true;
+		}
+		
+		if(continuations == null)
+			return;
+		
+		for(Blocks.Block continuation : continuations)
+			continuation.execute();
+	}
+	
+	public void finishWithError(@NonNull Error error)
+	{
+		if(this.isFinished())
+			return;
+		
+		this.setError(error);
+		this.finish();
+	}
+	
+	public void finishWithResult(T result)
+	{
+		synchronized(this)
+		{
+			if(this.isFinished())
+				return;
+			
+			_result = result;
+		}
+		
+		this.finish();
+	}
+	
+	@Override protected void main()
+	{
+		Callable<T> callable = _callable;
+		if(callable == null)
+		{
+			// Promises are finished as soon as they are started, with the outcome they have been resolved with.
+			if(_promise)
+				this.finish();
+			return;
+		}
+		
+		try
+		{
+			this.finishWithResult(callable.call());
+		}
+		catch(Exception e)
+		{
+			this.finishWithError(Error.newError(e));
+		}
+	}
+	
+	private boolean resolve(T result, Error error, boolean cancelled)
+	{
+		synchronized(this)
+		{
+			if(_resolved)
+				return false;
+			
+			_resolved = true;
+			_result = result;
+		}
+		
+		if(error != null)
+			this.setError(error);
+		
+		if(cancelled)
+			super.cancel();
+		
+		if(this.isExecuting())
+			this.finish();
+		else
+			this.start();
+		return true;
+	}
+	
+	private boolean resolveWithOperation(@NonNull ResultOperation<T> operation)
+	{
+		return this.resolve(operation.getResult(), operation.getError(), operation.isCancelled());
+	}
+	
+	private <R> void resolveWithTransformation(@NonNull ResultOperation<R> operation, @NonNull Transformation<R, T> transformation)
+	{
+		if(!operation.isSucceeded())
+		{
+			this.resolve(null, operation.getError(), operation.isCancelled());
+			return;
+		}
+		
+		T result;
+		try
+		{
+			result = transformation.execute(operation.getResult());
+		}
+		catch(Exception e)
+		{
+			this.resolve(null, Error.newError(e), false);
+			return;
+		}
+		this.resolve(result, null, false);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Methods - Composition management
+	
+	public static @NonNull <T> ResultOperation<List<T>> all(@NonNull final List<? extends ResultOperation<T>> operations)
+	{
+		final ResultOperation<List<T>> retObj = ResultOperation.newPromise();
+		
+		final int operationsCount = operations.size();
+		if(operationsCount == 0)
+		{
+			retObj.resolve(Collections.<T>emptyList(), null, false);
+			return retObj;
+		}
+		
+		// The first failure wins; otherwise the results are collected in order when the last operation succeeds.
+		final AtomicInteger pendingOperationsCount = new AtomicInteger(operationsCount);
+		for(final ResultOperation<T> operation : operations)
+		{
+			operation.addContinuation(new Blocks.Block()
+			{
+				@Override public void execute()
+				{
+					if(!operation.isSucceeded())
+					{
+						retObj.resolve(null, operation.getError(), operation.isCancelled());
+						return;
+					}
+					
+					if(pendingOperationsCount.decrementAndGet() > 0)
+						return;
+					
+					Object[] results = new Object[operationsCount];
+					for(int i = 0; i < operationsCount; i++)
+						results[i] = operations.get(i).getResult();
+					
+					@SuppressWarnings("unchecked") List<T> list = (List<T>)Arrays.asList(results);
+					retObj.resolve(list, null, false);
+				}
+			});
+		}
+		
+		return retObj;
+	}
+	
+	public static @NonNull <T> ResultOperation<T> any(@NonNull List<? extends ResultOperation<T>> operations)
+	{
+		final ResultOperation<T> retObj = ResultOperation.newPromise();
+		
+		int operationsCount = operations.size();
+		if(operationsCount == 0)
+		{
+			retObj.resolve(null, new Error(TAG, ERROR_NO_OPERATIONS, "No operations to wait for."), false);
+			return retObj;
+		}
+		
+		// The first success wins; otherwise the outcome of the last operation to fail is forwarded.
+		final AtomicInteger pendingOperationsCount = new AtomicInteger(operationsCount);
+		for(final ResultOperation<T> operation : operations)
+		{
+			operation.addContinuation(new Blocks.Block()
+			{
+				@Override public void execute()
+				{
+					if(operation.isSucceeded() || (pendingOperationsCount.decrementAndGet() == 0))
+						retObj.resolveWithOperation(operation);
+				}
+			});
+		}
+		
+		return retObj;
+	}
+	
+	public @NonNull <R> ResultOperation<R> then(@NonNull final Transformation<T, R> transformation)
+	{
+		final ResultOperation<R> retObj = ResultOperation.newPromise();
+		
+		// The transformation is executed by the thread that finishes this operation, without going through a queue.
+		this.addContinuation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{
+				retObj.resolveWithTransformation(ResultOperation.this, transformation);
+			}
+		});
+		
+		return retObj;
+	}
+	
+	public @NonNull <R> ResultOperation<R> thenOnQueue(@NonNull OperationQueue queue, @NonNull final Transformation<T, R> transformation)
+	{
+		final ResultOperation<R> retObj = new ResultOperation<R>()
+		{
+			@Override protected void main()
+			{
+				// Private methods aren't inherited by anonymous subclasses.
+				ResultOperation<R> operation = this;
+				operation.resolveWithTransformation(ResultOperation.this, transformation);
+			}
+		};
+		
+		// The dependency makes the new operation ready as soon as this one finishes: no worker is blocked in the meantime.
+		retObj.addDependency(this);
+		queue.addOperation(retObj);
+		return retObj;
+	}
+	
+	public @NonNull ResultOperation<T> timeout(long timeout)
+	{
+		final ResultOperation<T> retObj = ResultOperation.newPromise();
+		
+		final TimerWheel timerWheel = TimerWheel.getSharedTimerWheel();
+		final TimerWheel.Timeout timer = timerWheel.schedule(new Runnable()
+		{
+			@Override public void run()
+			{
+				// The timed out operation is cancelled, so that it doesn't waste resources on a result nobody is waiting for.
+				if(retObj.resolve(null, new Error(TAG, ERROR_TIMED_OUT, "The operation timed out."), false))
+					ResultOperation.this.cancel();
+			}
+		}, timeout);
+		
+		this.addContinuation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{
+				timerWheel.cancel(timer);
+				retObj.resolveWithOperation(ResultOperation.this);
+			}
+		});
+		
+		return retObj;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,301 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+final class TimerWheel
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	private static final String TAG = TimerWheel.class.getSimpleName();
+	
+	private static final long TICK_DURATION = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int WHEEL_SIZE = 512;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Types (Classes)
+	
+	static final class Timeout
+	{
+		private int _bucket;
+		private Timeout _next;
+		private Timeout _previous;
+		private long _remainingRounds;
+		private boolean _scheduled;
+		private final @NonNull Runnable _task;
+		
+		private Timeout(@NonNull Runnable task)
+		{
+			_bucket = 0;
+			_next = null;
+			_previous = null;
+			_remainingRounds = 0;
+			_scheduled = false;
+			_task = task;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Memory
+	
+	private static TimerWheel _sharedTimerWheel;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Execution
+	
+	private final @NonNull Timeout[] _buckets;
+	private long _currentTick;
+	private final long _startTime;
+	private Thread _thread;
+	private int _timeoutsCount;
+	private long _wakeUpTick;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Execution
+	
+	private long getTickForTime(long time)
+	{
+		return ((time - _startTime) / TICK_DURATION);
+	}
+	
+	private long getTimeForTick(long tick)
+	{
+		return (_startTime + (tick * TICK_DURATION));
+	}
+	
+	private long getNextExpirationTick()
+	{
+		// The buckets are visited in order: a timeout expiring in the current round can't be beaten by the following buckets, so the scan usually stops early.
+		long retVal = Long.MAX_VALUE;
+		for(int offset = 0; offset < WHEEL_SIZE; offset++)
+		{
+			long tick = _currentTick + offset;
+			for(Timeout timeout = _buckets[(int)(tick & (WHEEL_SIZE - 1))]; timeout != null; timeout = timeout._next)
+				retVal = Math.min(retVal, tick + timeout._remainingRounds * WHEEL_SIZE);
+			
+			if(retVal < _currentTick + WHEEL_SIZE)
+				break;
+		}
+		return retVal;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Memory management
+	
+	static @NonNull TimerWheel getSharedTimerWheel()
+	{
+		if(_sharedTimerWheel == null)
+		{
+			synchronized(TimerWheel.class)
+			{
+				if(_sharedTimerWheel == null)
+					_sharedTimerWheel = new TimerWheel();
+			}
+		}
+		return _sharedTimerWheel;
+	}
+	
+	private TimerWheel()
+	{
+		// Execution
+		_buckets = new Timeout[WHEEL_SIZE];
+		_currentTick = 0;
+		_startTime = System.nanoTime();
+		_thread = null;
+		_timeoutsCount = 0;
+		_wakeUpTick = Long.MAX_VALUE;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Execution management
+	
+	boolean cancel(@NonNull Timeout timeout)
+	{
+		synchronized(this)
+		{
+			if(!timeout._scheduled)
+				return false;
+			
+			this.unlink(timeout);
+			return true;
+		}
+	}
+	
+	private void run()
+	{
+		while(true)
+		{
+			List<Timeout> expiredTimeouts = null;
+			
+			synchronized(this)
+			{
+				try
+				{
+					// Sleeps until the end of the first tick with an expiring timeout, instead of waking up at every tick.
+					// The timeouts may change while waiting, so the wake-up tick is evaluated again at each iteration.
+					while(true)
+					{
+						while(_timeoutsCount == 0)
+							this.wait();
+						
+						_wakeUpTick = this.getNextExpirationTick();
+						long remainingTime = this.getTimeForTick(_wakeUpTick + 1) - System.nanoTime();
+						if(remainingTime <= 0)
+							break;
+						
+						TimeUnit.NANOSECONDS.timedWait(this, remainingTime);
+					}
+				}
+				catch(InterruptedException e)
+				{
+					Log.e(TAG, "Timer thread interrupted.", e);
+					continue;
+				}
+				finally
+				{
+					_wakeUpTick = Long.MAX_VALUE;
+				}
+				
+				// The elapsed ticks are all visited, so that the remaining rounds of the timeouts are kept up to date.
+				long now = System.nanoTime();
+				while((_timeoutsCount > 0) && (this.getTimeForTick(_currentTick + 1) <= now))
+				{
+					Timeout timeout = _buckets[(int)(_currentTick & (WHEEL_SIZE - 1))];
+					while(timeout != null)
+					{
+						Timeout next = timeout._next;
+						if(timeout._remainingRounds > 0)
+							timeout._remainingRounds--;
+						else
+						{
+							this.unlink(timeout);
+							if(expiredTimeouts == null)
+								expiredTimeouts = new ArrayList<>();
+							expiredTimeouts.add(timeout);
+						}
+						timeout = next;
+					}
+					
+					_currentTick++;
+				}
+			}
+			
+			if(expiredTimeouts == null)
+				continue;
+			
+			for(Timeout timeout : expiredTimeouts)
+			{
+				try
+				{
+					timeout._task.run();
+				}
+				catch(Throwable e)
+				{
+					Log.e(TAG, "Timer task failed.", e);
+				}
+			}
+		}
+	}
+	
+	@NonNull Timeout schedule(@NonNull Runnable task, long delay)
+	{
+		Timeout retObj = new Timeout(task);
+		
+		synchronized(this)
+		{
+			long now = System.nanoTime();
+			
+			// If the wheel is empty, it's useless to catch up with the ticks that have been skipped while the timer thread was waiting.
+			if(_timeoutsCount == 0)
+				_currentTick = Math.max(_currentTick, this.getTickForTime(now));
+			
+			long ticks = this.getTickForTime(now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+			ticks = Math.max(ticks, _currentTick);
+			
+			retObj._bucket = (int)(ticks & (WHEEL_SIZE - 1));
+			retObj._remainingRounds = (ticks - _currentTick) / WHEEL_SIZE;
+			retObj._scheduled = true;
+			
+			Timeout head = _buckets[retObj._bucket];
+			if(head != null)
+				head._previous = retObj;
+			retObj._next = head;
+			_buckets[retObj._bucket] = retObj;
+			
+			_timeoutsCount++;
+			
+			if(_thread == null)
+			{
+				_thread = new Thread(new Runnable()
+				{
+					@Override public void run()
+					{
+						TimerWheel.this.run();
+					}
+				}, TAG);
+				_thread.setDaemon(true);
+				_thread.start();
+			}
+			else if((_timeoutsCount == 1) || (ticks < _wakeUpTick))
+				this.notifyAll();
+		}
+		
+		return retObj;
+	}
+	
+	private void unlink(@NonNull Timeout timeout)
+	{
+		if(timeout._previous != null)
+			timeout._previous._next = timeout._next;
+		else
+			_buckets[timeout._bucket] = timeout._next;
+		
+		if(timeout._next != null)
+			timeout._next._previous = timeout._previous;
+		
+		timeout._next = null;
+		timeout._previous = null;
+		timeout._scheduled = false;
+		
+		_timeoutsCount--;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
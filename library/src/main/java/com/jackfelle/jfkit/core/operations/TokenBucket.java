@@ -0,0 +1,120 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import java.util.concurrent.TimeUnit;
+
+final class TokenBucket
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Data
+	
+	private final int _burst;
+	private final double _rate;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties - Execution
+	
+	private long _lastRefillTime;
+	private double _tokens;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Properties accessors - Data
+	
+	double getRate()
+	{
+		return _rate;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Memory management
+	
+	TokenBucket(double rate, int burst)
+	{
+		// Data
+		_burst = Math.max(1, burst);
+		_rate = rate;
+		
+		// Execution
+		_lastRefillTime = System.nanoTime();
+		_tokens = _burst;
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Execution management
+	
+	long getDelay()
+	{
+		// Returns the number of milliseconds to wait before the next token is available.
+		synchronized(this)
+		{
+			this.refill();
+			if(_tokens >= 1)
+				return 0;
+			
+			double seconds = (1 - _tokens) / _rate;
+			return Math.max(1, (long)Math.ceil(seconds * TimeUnit.SECONDS.toMillis(1)));
+		}
+	}
+	
+	private void refill()
+	{
+		long now = System.nanoTime();
+		long elapsedTime = now - _lastRefillTime;
+		if(elapsedTime <= 0)
+			return;
+		
+		_lastRefillTime = now;
+		_tokens = Math.min(_burst, _tokens + (elapsedTime * _rate) / TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	void refund()
+	{
+		synchronized(this)
+		{
+			_tokens = Math.min(_burst, _tokens + 1);
+		}
+	}
+	
+	boolean tryAcquire()
+	{
+		synchronized(this)
+		{
+			this.refill();
+			if(_tokens < 1)
+				return false;
+			
+			_tokens--;
+			return true;
+		}
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,111 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import com.jackfelle.jfkit.data.Blocks;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OperationQueueCoalescingTest
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	private static final long TIMEOUT = 5000;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Tests
+	
+	@Test public void mergeDoesNotFoldDependencyIntoDependent() throws InterruptedException
+	{
+		// Merging the dependency into the pending dependent would make the dependent wait for itself.
+		this.testDependencyIsNotCoalesced(OperationQueue.CoalescingPolicy.MERGE, true);
+	}
+	
+	@Test public void replaceDoesNotWithdrawDependency() throws InterruptedException
+	{
+		// Replacing the pending dependency with its dependent would make the dependent wait for itself.
+		this.testDependencyIsNotCoalesced(OperationQueue.CoalescingPolicy.REPLACE, false);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Utilities
+	
+	private static @NonNull Operation newCountingOperation(final AtomicInteger counter)
+	{
+		return new BlockOperation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{
+				counter.incrementAndGet();
+			}
+		});
+	}
+	
+	private void testDependencyIsNotCoalesced(@NonNull OperationQueue.CoalescingPolicy coalescingPolicy, boolean dependentFirst) throws InterruptedException
+	{
+		OperationQueue queue = OperationQueue.newConcurrentQueue("Coalescing");
+		queue.setCoalescingPolicy(coalescingPolicy);
+		
+		// The dependent operation waits for the other one through an intermediate operation; both share the same key.
+		AtomicInteger dependentRuns = new AtomicInteger(0);
+		AtomicInteger dependencyRuns = new AtomicInteger(0);
+		Operation dependency = OperationQueueCoalescingTest.newCountingOperation(dependencyRuns);
+		Operation intermediate = new BlockOperation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{}
+		});
+		Operation dependent = OperationQueueCoalescingTest.newCountingOperation(dependentRuns);
+		intermediate.addDependency(dependency);
+		dependent.addDependency(intermediate);
+		dependent.setCoalescingKey("key");
+		dependency.setCoalescingKey("key");
+		
+		queue.setSuspended(true);
+		queue.addOperation(dependentFirst ? dependent : dependency);
+		queue.addOperation(intermediate);
+		queue.addOperation(dependentFirst ? dependency : dependent);
+		queue.setSuspended(false);
+		
+		assertTrue("The operations didn't finish.", queue.waitUntilAllOperationsAreFinished(TIMEOUT));
+		assertTrue(dependent.isFinished());
+		assertTrue(dependency.isFinished());
+		assertEquals(1, dependencyRuns.get());
+		assertEquals(1, dependentRuns.get());
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}
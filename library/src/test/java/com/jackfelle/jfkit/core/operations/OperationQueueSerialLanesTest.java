@@ -0,0 +1,119 @@
+//
+//	The MIT License (MIT)
+//
+//	Copyright © 2017-2019 Jacopo Filié
+//
+//	Permission is hereby granted, free of charge, to any person obtaining a copy
+//	of this software and associated documentation files (the "Software"), to deal
+//	in the Software without restriction, including without limitation the rights
+//	to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+//	copies of the Software, and to permit persons to whom the Software is
+//	furnished to do so, subject to the following conditions:
+//
+//	The above copyright notice and this permission notice shall be included in all
+//	copies or substantial portions of the Software.
+//
+//	THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+//	IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+//	FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+//	AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+//	LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+//	OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+//	SOFTWARE.
+//
+
+package com.jackfelle.jfkit.core.operations;
+
+import com.jackfelle.jfkit.data.Blocks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OperationQueueSerialLanesTest
+{
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Constants
+	
+	private static final long TIMEOUT = 5000;
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Tests
+	
+	@Test public void laneRunsOperationsInOrder() throws InterruptedException
+	{
+		OperationQueue queue = OperationQueue.newConcurrentQueue("SerialLanes");
+		List<String> executedOperations = Collections.synchronizedList(new ArrayList<String>());
+		
+		queue.setSuspended(true);
+		queue.addOperation(OperationQueueSerialLanesTest.newLoggingOperation("first", executedOperations));
+		queue.addOperation(OperationQueueSerialLanesTest.newLoggingOperation("second", executedOperations));
+		queue.addOperation(OperationQueueSerialLanesTest.newLoggingOperation("third", executedOperations));
+		queue.setSuspended(false);
+		
+		assertTrue("The operations didn't finish.", queue.waitUntilAllOperationsAreFinished(TIMEOUT));
+		assertEquals(Arrays.asList("first", "second", "third"), executedOperations);
+	}
+	
+	@Test public void laneRunsActiveOperationDependencyFirst() throws InterruptedException
+	{
+		// The first operation of the lane waits for an operation added after it.
+		this.testLaneRunsDependencyFirst(false);
+	}
+	
+	@Test public void laneRunsPendingOperationDependencyFirst() throws InterruptedException
+	{
+		// A pending operation of the lane waits for an operation added after it.
+		this.testLaneRunsDependencyFirst(true);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+	// region Utilities
+	
+	private static @NonNull Operation newLoggingOperation(@NonNull final String name, @NonNull final List<String> executedOperations)
+	{
+		Operation retObj = new BlockOperation(new Blocks.Block()
+		{
+			@Override public void execute()
+			{
+				executedOperations.add(name);
+			}
+		});
+		retObj.setSerialKey("lane");
+		return retObj;
+	}
+	
+	private void testLaneRunsDependencyFirst(boolean laneIsBusy) throws InterruptedException
+	{
+		OperationQueue queue = OperationQueue.newConcurrentQueue("SerialLanes");
+		List<String> executedOperations = Collections.synchronizedList(new ArrayList<String>());
+		
+		Operation upload = OperationQueueSerialLanesTest.newLoggingOperation("upload", executedOperations);
+		Operation send = OperationQueueSerialLanesTest.newLoggingOperation("send", executedOperations);
+		send.addDependency(upload);
+		
+		queue.setSuspended(true);
+		if(laneIsBusy)
+			queue.addOperation(OperationQueueSerialLanesTest.newLoggingOperation("previous", executedOperations));
+		queue.addOperation(send);
+		queue.addOperation(upload);
+		queue.setSuspended(false);
+		
+		assertTrue("The operations didn't finish.", queue.waitUntilAllOperationsAreFinished(TIMEOUT));
+		List<String> expectedOperations = laneIsBusy ? Arrays.asList("previous", "upload", "send") : Arrays.asList("upload", "send");
+		assertEquals(expectedOperations, executedOperations);
+	}
+	
+	// endregion
+	////////////////////////////////////////////////////////////////////////////////////////////////////
+}